@@ -0,0 +1,386 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AhoCorasick finds several needles in a haystack in a single pass
+ * (instead of one FindArrayInArrayObj.getPosition or ArrayPattern per needle).
+ *
+ * The needles are built once in an automaton:
+ * - the elements of the needles are numbered by classes (1...k), all the other elements are
+ *   the class 0 that always goes back to the root: the table is nbStates * (k + 1) and not
+ *   nbStates * 256 (bytes) or unbounded (objects)
+ * - the failure links are resolved in the table (it's a DFA): one lookup per element of the haystack
+ * - each state knows the closest state of its failure chain that ends a needle (dictionary link)
+ *   so the matches are reported without following the whole chain
+ *
+ * The matches are reported to a Listener with the index of the needle and its position
+ * (start of the match, as getPosition) in the order where they end, the longest first.
+ * The overlapping matches and the needles contained in other needles are all reported.
+ *
+ * There is an automaton for byte[] (OfBytes, the class of a byte is in a table of 256 entries)
+ * and one for Object[] (OfObjects, the class is found with hashCode / equals).
+ * An automaton doesn't change once built so it can be used by several threads.
+ */
+public abstract class AhoCorasick {
+
+	/** Receives the matches */
+	public interface Listener {
+		/** A needle has been found
+		 *
+		 * @param needle   index of the needle
+		 * @param position position of the match in the haystack
+		 * @return false to stop the search
+		 */
+		boolean match(int needle, int position);
+	}
+
+	/** A match (cf findAll) */
+	public static class Match {
+		public final int needle;
+		public final int position;
+
+		public Match(int aNeedle, int aPosition){
+			needle   = aNeedle;
+			position = aPosition;
+		}
+
+		@Override
+		public String toString(){
+			return "needle "+needle+" at "+position;
+		}
+	}
+
+
+	/** Number of classes (the class 0 is for the elements that aren't in any needle) */
+	protected final int   iNbClasses;
+
+	/** Number of states (the root is 0) */
+	protected final int   iNbStates;
+
+	/** Next state: iDelta[state * iNbClasses + class] */
+	protected final int[] iDelta;
+
+	/** First state ending a needle from a state: itself or in its failure chain (-1 if none) */
+	protected final int[] iReport;
+
+	/** Next state ending a needle in the failure chain of a state ending one (-1 if none) */
+	protected final int[] iDictLink;
+
+	/** Needle ended by a state (-1 if none) */
+	protected final int[] iOutput;
+
+	/** Other needle equal to a needle (-1 if none) */
+	protected final int[] iSameNeedle;
+
+	/** Length of each needle */
+	protected final int[] iLengths;
+
+
+	/** Contructor: build the automaton
+	 *
+	 * @param needles    the needles as classes (from 1 to nbClasses - 1)
+	 * @param nbClasses  number of classes, the class 0 included
+	 */
+	protected AhoCorasick(int[][] needles, int nbClasses){
+		iNbClasses  = nbClasses;
+		iLengths    = new int[needles.length];
+		iSameNeedle = new int[needles.length];
+
+		int maxStates = 1;
+		for (int[] needle : needles){
+			if (needle.length == 0){
+				throw new IllegalArgumentException("Empty needle");
+			}
+			maxStates += needle.length;
+		}
+
+		// trie
+		int[] delta  = new int[maxStates * nbClasses];
+		int[] output = new int[maxStates];
+		Arrays.fill(delta, -1);
+		Arrays.fill(output, -1);
+		int nbStates = 1;
+		for (int n = 0; n < needles.length; ++n){
+			int state = 0;
+			for (int c : needles[n]){
+				if (delta[state * nbClasses + c] < 0){
+					delta[state * nbClasses + c] = nbStates++;
+				}
+				state = delta[state * nbClasses + c];
+			}
+			iLengths[n]    = needles[n].length;
+			iSameNeedle[n] = output[state];
+			output[state]  = n;
+		}
+
+		// failure links (breadth first, so the failure of a state already has its transitions)
+		int[] fail   = new int[nbStates];
+		int[] report = new int[nbStates];
+		int[] dict   = new int[nbStates];
+		int[] queue  = new int[nbStates];
+		int head = 0, tail = 0;
+		report[0] = output[0];
+		dict[0]   = -1;
+		for (int c = 0; c < nbClasses; ++c){
+			int next = delta[c];
+			if (next < 0){
+				delta[c] = 0;
+			} else {
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail){
+			int state = queue[head++];
+			dict[state]   = report[fail[state]];
+			report[state] = (output[state] >= 0) ? state : dict[state];
+			for (int c = 0; c < nbClasses; ++c){
+				int next = delta[state * nbClasses + c];
+				int back = delta[fail[state] * nbClasses + c];
+				if (next < 0){
+					delta[state * nbClasses + c] = back;
+				} else {
+					fail[next] = back;
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		iNbStates = nbStates;
+		iDelta    = Arrays.copyOf(delta, nbStates * nbClasses);
+		iOutput   = Arrays.copyOf(output, nbStates);
+		iReport   = report;
+		iDictLink = dict;
+	}
+
+
+	/** Report the needles ended by a state (and its failure chain)
+	 *
+	 * @param state    state with iReport[state] >= 0
+	 * @param end      position of the last element of the matches
+	 * @param listener receives them
+	 * @return the number of matches reported, negative if the listener stopped the search
+	 */
+	protected final int report(int state, int end, Listener listener){
+		int nbMatches = 0;
+		for (int s = iReport[state]; s >= 0; s = iDictLink[s]){
+			for (int n = iOutput[s]; n >= 0; n = iSameNeedle[n]){
+				++nbMatches;
+				if (!listener.match(n, end - iLengths[n] + 1)){
+					return -nbMatches;
+				}
+			}
+		}
+		return nbMatches;
+	}
+
+
+	/** @return the number of needles */
+	public int getNbNeedles(){ return iLengths.length; }
+
+	/** @return the number of states */
+	public int getNbStates(){ return iNbStates; }
+
+	/** @return the approximate memory used by the automaton in bytes */
+	public long getMemory(){
+		return 4L * (iDelta.length + iReport.length + iDictLink.length + iOutput.length + iSameNeedle.length + iLengths.length);
+	}
+
+	@Override
+	public String toString(){
+		return getClass().getSimpleName()+" of "+iLengths.length+" needles: "+iNbStates+" states, "
+				+iNbClasses+" classes, "+getMemory() / 1024+" KB";
+	}
+
+
+	/** Automaton of byte needles */
+	public static final class OfBytes extends AhoCorasick {
+
+		/** Class of each byte (0 if it isn't in any needle) */
+		private final int[] iClasses;
+
+		/** Contructor
+		 *
+		 * @param needles the needles (not empty)
+		 */
+		public OfBytes(byte[]... needles){
+			this(getClasses(needles), needles);
+		}
+
+		private OfBytes(int[] classes, byte[][] needles){
+			super(toClasses(classes, needles), classes[256]);
+			iClasses = Arrays.copyOf(classes, 256);
+		}
+
+		/** @return the class of each byte and their number (+1) in the last entry */
+		private static int[] getClasses(byte[][] needles){
+			int[] classes = new int[257];
+			int nbClasses = 1;
+			for (byte[] needle : needles){
+				for (byte b : needle){
+					if (classes[b & 0xFF] == 0){
+						classes[b & 0xFF] = nbClasses++;
+					}
+				}
+			}
+			classes[256] = nbClasses;
+			return classes;
+		}
+
+		private static int[][] toClasses(int[] classes, byte[][] needles){
+			int[][] result = new int[needles.length][];
+			for (int n = 0; n < needles.length; ++n){
+				result[n] = new int[needles[n].length];
+				for (int i = 0; i < needles[n].length; ++i)
+					result[n][i] = classes[needles[n][i] & 0xFF];
+			}
+			return result;
+		}
+
+		/** Find the needles in haystack[from...to-1]
+		 *
+		 * @param listener receives the matches (positions in the haystack)
+		 * @return the number of matches reported
+		 */
+		public int search(byte[] haystack, int from, int to, Listener listener){
+			java.util.Objects.checkFromToIndex(from, to, haystack.length);
+			int[] delta = iDelta, classes = iClasses, reports = iReport;
+			int nbClasses = iNbClasses;
+			int nbMatches = 0, state = 0;
+			for (int i = from; i < to; ++i){
+				state = delta[state * nbClasses + classes[haystack[i] & 0xFF]];
+				if (reports[state] >= 0){
+					int nb = report(state, i, listener);
+					if (nb < 0){
+						return nbMatches - nb;
+					}
+					nbMatches += nb;
+				}
+			}
+			return nbMatches;
+		}
+
+		/** @return all the matches in the haystack */
+		public List<Match> findAll(byte[] haystack){
+			List<Match> matches = new ArrayList<>();
+			search(haystack, 0, haystack.length, (needle, position) -> matches.add(new Match(needle, position)));
+			return matches;
+		}
+	}
+
+
+	/** Automaton of object needles (compared with equals) */
+	public static final class OfObjects<T> extends AhoCorasick {
+
+		/** Key of null in the classes */
+		private static final Object nullKey = new Object();
+
+		/** Class of each element of the needles */
+		private final Map<Object, Integer> iClasses;
+
+		/** Contructor
+		 *
+		 * @param needles the needles (not empty)
+		 */
+		@SafeVarargs
+		@SuppressWarnings("varargs") // only read to build the automaton
+		public OfObjects(T[]... needles){
+			this(new HashMap<>(), needles);
+		}
+
+		private OfObjects(Map<Object, Integer> classes, Object[][] needles){
+			super(toClasses(classes, needles), classes.size() + 1);
+			iClasses = classes;
+		}
+
+		private static int[][] toClasses(Map<Object, Integer> classes, Object[][] needles){
+			int[][] result = new int[needles.length][];
+			for (int n = 0; n < needles.length; ++n){
+				result[n] = new int[needles[n].length];
+				for (int i = 0; i < needles[n].length; ++i)
+					result[n][i] = classes.computeIfAbsent(key(needles[n][i]), o -> classes.size() + 1);
+			}
+			return result;
+		}
+
+		private static Object key(Object o){
+			return (o == null) ? nullKey : o;
+		}
+
+		/** Find the needles in haystack[from...to-1]
+		 *
+		 * @param listener receives the matches (positions in the haystack)
+		 * @return the number of matches reported
+		 */
+		public int search(T[] haystack, int from, int to, Listener listener){
+			java.util.Objects.checkFromToIndex(from, to, haystack.length);
+			int nbMatches = 0, state = 0;
+			for (int i = from; i < to; ++i){
+				state = iDelta[state * iNbClasses + iClasses.getOrDefault(key(haystack[i]), 0)];
+				if (iReport[state] >= 0){
+					int nb = report(state, i, listener);
+					if (nb < 0){
+						return nbMatches - nb;
+					}
+					nbMatches += nb;
+				}
+			}
+			return nbMatches;
+		}
+
+		/** @return all the matches in the haystack */
+		public List<Match> findAll(T[] haystack){
+			List<Match> matches = new ArrayList<>();
+			search(haystack, 0, haystack.length, (needle, position) -> matches.add(new Match(needle, position)));
+			return matches;
+		}
+	}
+
+
+	/** Examples and a comparison with one ArrayPattern per needle */
+	public static void main(String[] args){
+		OfBytes markers = new OfBytes("=ybegin".getBytes(), "=ypart".getBytes(), "=yend".getBytes(),
+				"\r\n.\r\n".getBytes(), "\r\n".getBytes());
+		System.out.println(markers);
+		byte[] article = "=ybegin part=1 line=128\r\n=ypart begin=1 end=10\r\ndata\r\n=yend size=10\r\n.\r\n".getBytes();
+		for (Match match : markers.findAll(article)){
+			System.out.println(match);
+		}
+
+		OfObjects<String> letters = new OfObjects<>("he".split(""), "she".split(""), "his".split(""), "hers".split(""));
+		System.out.println(letters);
+		System.out.println(letters.findAll("ushers".split("")));
+
+		// hundreds of signatures in a random haystack
+		java.util.Random random = new java.util.Random(42);
+		byte[] haystack = new byte[1 << 22];
+		random.nextBytes(haystack);
+		byte[][] needles = new byte[500][];
+		for (int n = 0; n < needles.length; ++n){
+			int start = random.nextInt(haystack.length - 16);
+			needles[n] = Arrays.copyOfRange(haystack, start, start + 4 + random.nextInt(12));
+		}
+		long start = System.nanoTime();
+		OfBytes automaton = new OfBytes(needles);
+		System.out.println(automaton+" built in "+(System.nanoTime() - start) / 1000000+" ms");
+
+		int[] counts = new int[needles.length];
+		start = System.nanoTime();
+		int nbMatches = automaton.search(haystack, 0, haystack.length, (needle, position) -> { ++counts[needle]; return true; });
+		System.out.println(nbMatches+" matches in one pass: "+(System.nanoTime() - start) / 1000000+" ms");
+
+		start = System.nanoTime();
+		boolean isOk = true;
+		for (int n = 0; n < needles.length; ++n){
+			ArrayPattern.OfBytes pattern = ArrayPattern.compile(needles[n]);
+			int nb = 0;
+			for (int pos = pattern.indexOf(haystack); pos >= 0; pos = pattern.indexOf(haystack, pos + 1, haystack.length))
+				++nb;
+			isOk &= nb == counts[n];
+		}
+		System.out.println("Same counts with one ArrayPattern per needle: "+isOk+", "+(System.nanoTime() - start) / 1000000+" ms");
+	}
+
+}
@@ -0,0 +1,927 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * ArrayPattern is a needle compiled once to be searched in many haystacks
+ * (FindArrayInArrayObj.getPosition compares the whole needle again at each position: O(n.m)).
+ *
+ * - Knuth-Morris-Pratt: O(n + m), each element of the haystack is read once
+ * - Boyer-Moore-Horspool: the windows are compared from their last element and skip up to m elements,
+ *   O(n / m) on average when the alphabet is large, O(n.m) in the worst case
+ * - Two-Way (Crochemore-Perrin): O(n + m) with a constant memory, good on repetitive data
+ * - naive: for the needles of a few elements (nothing to precompute)
+ * - SWAR (byte[] only): the first and last bytes of the needle are compared at 8 positions at once
+ *   with a long (SIMD within a register), only the candidates are compared entirely
+ *
+ * The algorithm is chosen from the length of the needle and its number of distinct elements
+ * (cf getAlgorithm, the short byte needles with a large alphabet use SWAR instead of NAIVE or HORSPOOL),
+ * it can also be forced with compile(needle, algorithm).
+ *
+ * There is a pattern for byte[], char[], int[], long[] (compared directly) and Object[]
+ * (compared with equals, hashCode gives the shifts of Horspool).
+ * The shift table of Horspool has 256 entries: the elements that aren't bytes are hashed
+ * into it and an entry keeps the smallest shift of the elements that share it.
+ *
+ * findAll gives all the positions as a lazy IntStream (cf Matches): they are searched on demand
+ * so findFirst, limit or anyMatch stop the search, and a parallel stream searches chunks
+ * of the haystack on several cores (overlapping matches only).
+ *
+ * A pattern doesn't change once compiled so it can be used by several threads.
+ * Example: ArrayPattern.compile("\r\n.\r\n".getBytes()).indexOf(buffer, 0, size)
+ */
+public abstract class ArrayPattern<A> {
+
+	/** Search algorithms */
+	public enum Algorithm { NAIVE, KMP, HORSPOOL, TWO_WAY, SWAR }
+
+	/** Needles up to this length are searched naively */
+	public static int iMaxNaiveLength      = 3;
+
+	/** Number of distinct elements in the needle (or half its length if less) to use Horspool (bigger shifts) */
+	public static int iMinHorspoolAlphabet = 8;
+
+	/** Needles with few distinct elements up to this length use KMP, the longer ones Two-Way */
+	public static int iMaxKmpLength        = 16;
+
+	/** Byte needles from this length keep Horspool when it is chosen (its shifts beat SWAR), the shorter ones use SWAR */
+	public static int iMinBytesHorspoolLength = 32;
+
+
+	/** Key of null in the ids of an Object needle */
+	private static final Object nullKey = new Object();
+
+
+	/** Length of the needle */
+	protected final int       iLength;
+
+	/** Algorithm used */
+	protected final Algorithm iAlgorithm;
+
+	/** KMP: length of the longest proper border of needle[0...i] */
+	protected int[]   iNext;
+
+	/** Horspool: shift of the window according to its last element (cf bucket) */
+	protected int[]   iShift;
+
+	/** Two-Way: critical position, period of the right part and if the needle is periodic */
+	protected int     iCritical;
+	protected int     iPeriod;
+	protected boolean iIsPeriodic;
+
+
+	/** Contructor
+	 *
+	 * @param symbols   the needle as numbers (same element, same number)
+	 * @param algorithm algorithm to use (null to choose it)
+	 */
+	protected ArrayPattern(long[] symbols, Algorithm algorithm){
+		iLength    = symbols.length;
+		iAlgorithm = (iLength == 0) ? Algorithm.NAIVE
+				: (algorithm != null) ? algorithm : getAlgorithm(symbols);
+
+		if (iAlgorithm == Algorithm.KMP){
+			iNext = new int[iLength];
+			for (int i = 1, k = 0; i < iLength; ++i){
+				while (k > 0 && symbols[i] != symbols[k])
+					k = iNext[k-1];
+				if (symbols[i] == symbols[k])
+					++k;
+				iNext[i] = k;
+			}
+		} else if (iAlgorithm == Algorithm.TWO_WAY){
+			long suffix      = maxSuffix(symbols, false);
+			long suffixTilde = maxSuffix(symbols, true);
+			long critical    = ((int) suffix > (int) suffixTilde) ? suffix : suffixTilde;
+			iCritical   = (int) critical;
+			iPeriod     = (int) (critical >>> 32);
+			iIsPeriodic = iCritical + iPeriod < iLength
+					&& Arrays.equals(symbols, 0, iCritical + 1, symbols, iPeriod, iPeriod + iCritical + 1);
+			if (!iIsPeriodic){
+				iPeriod = Math.max(iCritical + 1, iLength - iCritical - 1) + 1;
+			}
+		}
+	}
+
+
+	/** Choose the algorithm for a needle
+	 *
+	 * @param symbols the needle as numbers
+	 * @return NAIVE for the short needles, HORSPOOL if they have enough distinct elements,
+	 *         KMP or TWO_WAY (the longer ones) otherwise
+	 */
+	public static Algorithm getAlgorithm(long[] symbols){
+		if (symbols.length <= iMaxNaiveLength){
+			return Algorithm.NAIVE;
+		}
+		long[] sorted = symbols.clone();
+		Arrays.sort(sorted);
+		int minDistinct = Math.min(iMinHorspoolAlphabet, (symbols.length + 1) / 2);
+		int nbDistinct  = 1;
+		for (int i = 1; i < sorted.length && nbDistinct < minDistinct; ++i){
+			if (sorted[i] != sorted[i-1])
+				++nbDistinct;
+		}
+		if (nbDistinct >= minDistinct){
+			return Algorithm.HORSPOOL;
+		}
+		return (symbols.length <= iMaxKmpLength) ? Algorithm.KMP : Algorithm.TWO_WAY;
+	}
+
+
+	/** Maximal suffix of the needle (for the order of the numbers or the reverse one)
+	 *
+	 * @return its start - 1 in the low int and its period in the high int
+	 */
+	private static long maxSuffix(long[] x, boolean isReversed){
+		int ms = -1, j = 0, k = 1, p = 1;
+		while (j + k < x.length){
+			long a = x[j+k], b = x[ms+k];
+			if (a == b){
+				if (k != p){
+					++k;
+				} else {
+					j += p;
+					k = 1;
+				}
+			} else if ((a < b) != isReversed){
+				j += k;
+				k = 1;
+				p = j - ms;
+			} else {
+				ms = j;
+				j  = ms + 1;
+				k  = p = 1;
+			}
+		}
+		return ((long) p << 32) | (ms & 0xFFFFFFFFL);
+	}
+
+
+	/** @return the needle as numbers */
+	protected static long[] toSymbols(byte[] needle){
+		long[] symbols = new long[needle.length];
+		for (int i = 0; i < needle.length; ++i)
+			symbols[i] = needle[i];
+		return symbols;
+	}
+
+	protected static long[] toSymbols(char[] needle){
+		long[] symbols = new long[needle.length];
+		for (int i = 0; i < needle.length; ++i)
+			symbols[i] = needle[i];
+		return symbols;
+	}
+
+	protected static long[] toSymbols(int[] needle){
+		long[] symbols = new long[needle.length];
+		for (int i = 0; i < needle.length; ++i)
+			symbols[i] = needle[i];
+		return symbols;
+	}
+
+	protected static long[] toSymbols(long[] needle){
+		return needle.clone();
+	}
+
+	/** @return the needle as ids (the equal objects have the same id, in the order of their first occurrence) */
+	protected static long[] toIds(Object[] needle){
+		Map<Object, Integer> ids = new HashMap<>();
+		long[] symbols = new long[needle.length];
+		for (int i = 0; i < needle.length; ++i)
+			symbols[i] = ids.computeIfAbsent(needle[i] == null ? nullKey : needle[i], o -> ids.size());
+		return symbols;
+	}
+
+	/** @return the entry of the Horspool shift table of a hash */
+	protected static int bucket(int hash){
+		return (hash ^ (hash >>> 8) ^ (hash >>> 16) ^ (hash >>> 24)) & 0xFF;
+	}
+
+
+	public static OfBytes compile(byte[] needle)                       { return new OfBytes(needle, null); }
+	public static OfBytes compile(byte[] needle, Algorithm algorithm)  { return new OfBytes(needle, algorithm); }
+	public static OfChars compile(char[] needle)                       { return new OfChars(needle, null); }
+	public static OfChars compile(char[] needle, Algorithm algorithm)  { return new OfChars(needle, algorithm); }
+	public static OfInts  compile(int[] needle)                        { return new OfInts(needle, null); }
+	public static OfInts  compile(int[] needle, Algorithm algorithm)   { return new OfInts(needle, algorithm); }
+	public static OfLongs compile(long[] needle)                       { return new OfLongs(needle, null); }
+	public static OfLongs compile(long[] needle, Algorithm algorithm)  { return new OfLongs(needle, algorithm); }
+	public static <T> OfObjects<T> compile(T[] needle)                      { return new OfObjects<>(needle, null); }
+	public static <T> OfObjects<T> compile(T[] needle, Algorithm algorithm) { return new OfObjects<>(needle, algorithm); }
+
+
+	/** @return the length of the needle */
+	public int length(){ return iLength; }
+
+	/** @return the algorithm used */
+	public Algorithm getAlgorithm(){ return iAlgorithm; }
+
+
+	/** @return the position of the needle in the haystack or -1 */
+	public int indexOf(A haystack){
+		return indexOf(haystack, 0, length(haystack));
+	}
+
+	/** Give the position of the needle in haystack[from...to-1]
+	 *  @return the position in the haystack (not relative to from) or -1
+	 */
+	public int indexOf(A haystack, int from, int to){
+		Objects.checkFromToIndex(from, to, length(haystack));
+		if (iLength == 0){
+			return from;
+		}
+		switch (iAlgorithm){
+			case KMP:      return kmp(haystack, from, to);
+			case HORSPOOL: return horspool(haystack, from, to);
+			case TWO_WAY:  return twoWay(haystack, from, to);
+			case SWAR:     return swar(haystack, from, to);
+			default:       return naive(haystack, from, to);
+		}
+	}
+
+
+	/** @return the positions of all the matches (overlapping) in the haystack, searched on demand */
+	public IntStream findAll(A haystack){
+		return findAll(haystack, 0, length(haystack), true);
+	}
+
+	/** Give the positions of the matches in haystack[from...to-1], searched on demand
+	 *
+	 * @param isOverlapping true to give all the matches, false to search the next one after the end of a match
+	 *                      (the stream can only be split, i.e. parallel, when they overlap)
+	 * @return the positions in the haystack in increasing order
+	 */
+	public IntStream findAll(A haystack, int from, int to, boolean isOverlapping){
+		Objects.checkFromToIndex(from, to, length(haystack));
+		return StreamSupport.intStream(new Matches<>(this, haystack, from, to - iLength + 1, to, isOverlapping), false);
+	}
+
+
+	/** Positions of the matches starting in [iFrom, iTo), searched when they are requested */
+	public static class Matches<A> implements Spliterator.OfInt {
+		private final ArrayPattern<A> iPattern;
+		private final A               iHaystack;
+		private final int             iEnd;
+		private final boolean         iIsOverlapping;
+		private int                   iFrom;
+		private int                   iTo;
+
+		/** Contructor
+		 *
+		 * @param aFrom first position of a match
+		 * @param aTo   last position of a match + 1
+		 * @param aEnd  end of the search (aTo + needle.length - 1 for the whole haystack)
+		 */
+		Matches(ArrayPattern<A> aPattern, A aHaystack, int aFrom, int aTo, int aEnd, boolean aIsOverlapping){
+			iPattern       = aPattern;
+			iHaystack      = aHaystack;
+			iFrom          = aFrom;
+			iTo            = aTo;
+			iEnd           = aEnd;
+			iIsOverlapping = aIsOverlapping;
+		}
+
+		@Override
+		public boolean tryAdvance(IntConsumer action){
+			if (iFrom >= iTo){
+				return false;
+			}
+			int pos = iPattern.indexOf(iHaystack, iFrom, Math.min(iEnd, iTo + iPattern.iLength - 1));
+			if (pos < 0){
+				iFrom = iTo;
+				return false;
+			}
+			iFrom = pos + (iIsOverlapping ? 1 : Math.max(1, iPattern.iLength));
+			action.accept(pos);
+			return true;
+		}
+
+		/** Split the positions in two (cf ParallelSearch.iThreshold), the matches of the first half can end
+		 *  in the second one: it's searched up to needle.length - 1 elements after its end */
+		@Override
+		public Spliterator.OfInt trySplit(){
+			if (!iIsOverlapping || iTo - iFrom <= ParallelSearch.iThreshold){
+				return null;
+			}
+			int middle = (iFrom + iTo) >>> 1;
+			Matches<A> prefix = new Matches<>(iPattern, iHaystack, iFrom, middle, iEnd, true);
+			iFrom = middle;
+			return prefix;
+		}
+
+		/** @return the number of positions left (the matches can't be more) */
+		@Override
+		public long estimateSize(){
+			return Math.max(0, iTo - iFrom);
+		}
+
+		@Override
+		public int characteristics(){
+			return ORDERED | DISTINCT | SORTED | NONNULL | IMMUTABLE;
+		}
+
+		/** @return null: the positions are in their natural order */
+		@Override
+		public java.util.Comparator<? super Integer> getComparator(){
+			return null;
+		}
+	}
+
+
+	protected abstract int length(A haystack);
+	protected abstract int naive(A haystack, int from, int to);
+	protected abstract int kmp(A haystack, int from, int to);
+	protected abstract int horspool(A haystack, int from, int to);
+	protected abstract int twoWay(A haystack, int from, int to);
+
+	/** SWAR search (only for bytes, the other patterns search naively) */
+	protected int swar(A haystack, int from, int to){
+		return naive(haystack, from, to);
+	}
+
+	@Override
+	public String toString(){
+		return getClass().getSimpleName()+" of "+iLength+" elements ("+iAlgorithm+")";
+	}
+
+
+	/** Pattern of bytes */
+	public static final class OfBytes extends ArrayPattern<byte[]> {
+
+		/** Reads 8 bytes of a byte[] as a long (the first one in the low byte) */
+		private static final VarHandle longs = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+		private static final long lowBits = 0x7F7F7F7F7F7F7F7FL;
+
+		private final byte[] iNeedle;
+
+		private OfBytes(byte[] needle, Algorithm algorithm){
+			super(toSymbols(needle), (algorithm == null && needle.length > 0) ? getBytesAlgorithm(needle) : algorithm);
+			iNeedle = needle.clone();
+			iShift  = (iAlgorithm == Algorithm.HORSPOOL) ? new int[256] : null;
+			if (iShift != null){
+				Arrays.fill(iShift, iLength);
+				for (int i = 0; i < iLength - 1; ++i){
+					iShift[iNeedle[i] & 0xFF] = iLength - 1 - i;
+				}
+			}
+		}
+
+		@Override
+		protected int length(byte[] haystack){
+			return haystack.length;
+		}
+
+		/** return if haystack[pos+start...pos+end-1] is equal to iNeedle[start...end-1] */
+		private boolean matches(byte[] haystack, int pos, int start, int end){
+			for (int i = start; i < end; ++i){
+				if (!(haystack[pos+i] == iNeedle[i]))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int naive(byte[] haystack, int from, int to){
+			byte first = iNeedle[0];
+			for (int pos = from, last = to - iLength; pos <= last; ++pos){
+				if (haystack[pos] == first && matches(haystack, pos, 1, iLength))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int kmp(byte[] haystack, int from, int to){
+			int j = 0;
+			for (int i = from; i < to; ++i){
+				while (j > 0 && !(haystack[i] == iNeedle[j]))
+					j = iNext[j-1];
+				if (haystack[i] == iNeedle[j] && ++j == iLength)
+					return i - iLength + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int horspool(byte[] haystack, int from, int to){
+			int m = iLength;
+			byte lastOfNeedle = iNeedle[m-1];
+			for (int pos = from; pos <= to - m; ){
+				byte last = haystack[pos+m-1];
+				if (last == lastOfNeedle && matches(haystack, pos, 0, m - 1))
+					return pos;
+				pos += iShift[last & 0xFF];
+			}
+			return -1;
+		}
+
+		/** Choose the algorithm of a byte needle: SWAR instead of NAIVE and of HORSPOOL for the short needles
+		 *  (the long ones skip faster with Horspool). KMP and TWO_WAY are kept for the repetitive needles:
+		 *  their first and last bytes are everywhere, SWAR would be O(n.m) on them as NAIVE */
+		private static Algorithm getBytesAlgorithm(byte[] needle){
+			Algorithm algorithm = getAlgorithm(toSymbols(needle));
+			if (algorithm == Algorithm.NAIVE || (algorithm == Algorithm.HORSPOOL && needle.length < iMinBytesHorspoolLength)){
+				return Algorithm.SWAR;
+			}
+			return algorithm;
+		}
+
+		/** @return 0x80 in the bytes of x that are 0, 0 in the others */
+		private static long zeroBytes(long x){
+			return ~(((x & lowBits) + lowBits) | x | lowBits);
+		}
+
+		@Override
+		protected int swar(byte[] haystack, int from, int to){
+			int  m     = iLength;
+			long first = (iNeedle[0] & 0xFFL) * 0x0101010101010101L;
+			long last  = (iNeedle[m-1] & 0xFFL) * 0x0101010101010101L;
+			int  pos   = from;
+			// 8 windows at a time while the last bytes of the 8 windows are in the haystack
+			for (int end = to - m - 7; pos <= end; pos += 8){
+				long firsts = (long) longs.get(haystack, pos) ^ first;
+				long lasts  = (long) longs.get(haystack, pos + m - 1) ^ last;
+				for (long candidates = zeroBytes(firsts | lasts); candidates != 0; candidates &= candidates - 1){
+					int candidate = pos + (Long.numberOfTrailingZeros(candidates) >>> 3);
+					if (matches(haystack, candidate, 1, m - 1))
+						return candidate;
+				}
+			}
+			for (int end = to - m; pos <= end; ++pos){
+				if (haystack[pos] == iNeedle[0] && haystack[pos+m-1] == iNeedle[m-1] && matches(haystack, pos, 1, m - 1))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int twoWay(byte[] haystack, int from, int to){
+			int m = iLength, ell = iCritical, per = iPeriod;
+			int memory = -1;
+			for (int j = from; j <= to - m; ){
+				int i = Math.max(ell, memory) + 1;
+				while (i < m && iNeedle[i] == haystack[i+j])
+					++i;
+				if (i < m){
+					j += i - ell;
+					memory = -1;
+					continue;
+				}
+				i = ell;
+				while (i > memory && iNeedle[i] == haystack[i+j])
+					--i;
+				if (i <= memory)
+					return j;
+				j += per;
+				memory = iIsPeriodic ? m - per - 1 : -1;
+			}
+			return -1;
+		}
+	}
+
+
+	/** Pattern of chars */
+	public static final class OfChars extends ArrayPattern<char[]> {
+		private final char[] iNeedle;
+
+		private OfChars(char[] needle, Algorithm algorithm){
+			super(toSymbols(needle), algorithm);
+			iNeedle = needle.clone();
+			iShift  = (iAlgorithm == Algorithm.HORSPOOL) ? new int[256] : null;
+			if (iShift != null){
+				Arrays.fill(iShift, iLength);
+				for (int i = 0; i < iLength - 1; ++i){
+					iShift[iNeedle[i] & 0xFF] = iLength - 1 - i;
+				}
+			}
+		}
+
+		@Override
+		protected int length(char[] haystack){
+			return haystack.length;
+		}
+
+		/** return if haystack[pos+start...pos+end-1] is equal to iNeedle[start...end-1] */
+		private boolean matches(char[] haystack, int pos, int start, int end){
+			for (int i = start; i < end; ++i){
+				if (!(haystack[pos+i] == iNeedle[i]))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int naive(char[] haystack, int from, int to){
+			char first = iNeedle[0];
+			for (int pos = from, last = to - iLength; pos <= last; ++pos){
+				if (haystack[pos] == first && matches(haystack, pos, 1, iLength))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int kmp(char[] haystack, int from, int to){
+			int j = 0;
+			for (int i = from; i < to; ++i){
+				while (j > 0 && !(haystack[i] == iNeedle[j]))
+					j = iNext[j-1];
+				if (haystack[i] == iNeedle[j] && ++j == iLength)
+					return i - iLength + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int horspool(char[] haystack, int from, int to){
+			int m = iLength;
+			char lastOfNeedle = iNeedle[m-1];
+			for (int pos = from; pos <= to - m; ){
+				char last = haystack[pos+m-1];
+				if (last == lastOfNeedle && matches(haystack, pos, 0, m - 1))
+					return pos;
+				pos += iShift[last & 0xFF];
+			}
+			return -1;
+		}
+
+		@Override
+		protected int twoWay(char[] haystack, int from, int to){
+			int m = iLength, ell = iCritical, per = iPeriod;
+			int memory = -1;
+			for (int j = from; j <= to - m; ){
+				int i = Math.max(ell, memory) + 1;
+				while (i < m && iNeedle[i] == haystack[i+j])
+					++i;
+				if (i < m){
+					j += i - ell;
+					memory = -1;
+					continue;
+				}
+				i = ell;
+				while (i > memory && iNeedle[i] == haystack[i+j])
+					--i;
+				if (i <= memory)
+					return j;
+				j += per;
+				memory = iIsPeriodic ? m - per - 1 : -1;
+			}
+			return -1;
+		}
+	}
+
+
+	/** Pattern of ints */
+	public static final class OfInts extends ArrayPattern<int[]> {
+		private final int[] iNeedle;
+
+		private OfInts(int[] needle, Algorithm algorithm){
+			super(toSymbols(needle), algorithm);
+			iNeedle = needle.clone();
+			iShift  = (iAlgorithm == Algorithm.HORSPOOL) ? new int[256] : null;
+			if (iShift != null){
+				Arrays.fill(iShift, iLength);
+				for (int i = 0; i < iLength - 1; ++i){
+					iShift[bucket(iNeedle[i])] = iLength - 1 - i;
+				}
+			}
+		}
+
+		@Override
+		protected int length(int[] haystack){
+			return haystack.length;
+		}
+
+		/** return if haystack[pos+start...pos+end-1] is equal to iNeedle[start...end-1] */
+		private boolean matches(int[] haystack, int pos, int start, int end){
+			for (int i = start; i < end; ++i){
+				if (!(haystack[pos+i] == iNeedle[i]))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int naive(int[] haystack, int from, int to){
+			int first = iNeedle[0];
+			for (int pos = from, last = to - iLength; pos <= last; ++pos){
+				if (haystack[pos] == first && matches(haystack, pos, 1, iLength))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int kmp(int[] haystack, int from, int to){
+			int j = 0;
+			for (int i = from; i < to; ++i){
+				while (j > 0 && !(haystack[i] == iNeedle[j]))
+					j = iNext[j-1];
+				if (haystack[i] == iNeedle[j] && ++j == iLength)
+					return i - iLength + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int horspool(int[] haystack, int from, int to){
+			int m = iLength;
+			int lastOfNeedle = iNeedle[m-1];
+			for (int pos = from; pos <= to - m; ){
+				int last = haystack[pos+m-1];
+				if (last == lastOfNeedle && matches(haystack, pos, 0, m - 1))
+					return pos;
+				pos += iShift[bucket(last)];
+			}
+			return -1;
+		}
+
+		@Override
+		protected int twoWay(int[] haystack, int from, int to){
+			int m = iLength, ell = iCritical, per = iPeriod;
+			int memory = -1;
+			for (int j = from; j <= to - m; ){
+				int i = Math.max(ell, memory) + 1;
+				while (i < m && iNeedle[i] == haystack[i+j])
+					++i;
+				if (i < m){
+					j += i - ell;
+					memory = -1;
+					continue;
+				}
+				i = ell;
+				while (i > memory && iNeedle[i] == haystack[i+j])
+					--i;
+				if (i <= memory)
+					return j;
+				j += per;
+				memory = iIsPeriodic ? m - per - 1 : -1;
+			}
+			return -1;
+		}
+	}
+
+
+	/** Pattern of longs */
+	public static final class OfLongs extends ArrayPattern<long[]> {
+		private final long[] iNeedle;
+
+		private OfLongs(long[] needle, Algorithm algorithm){
+			super(toSymbols(needle), algorithm);
+			iNeedle = needle.clone();
+			iShift  = (iAlgorithm == Algorithm.HORSPOOL) ? new int[256] : null;
+			if (iShift != null){
+				Arrays.fill(iShift, iLength);
+				for (int i = 0; i < iLength - 1; ++i){
+					iShift[bucket(Long.hashCode(iNeedle[i]))] = iLength - 1 - i;
+				}
+			}
+		}
+
+		@Override
+		protected int length(long[] haystack){
+			return haystack.length;
+		}
+
+		/** return if haystack[pos+start...pos+end-1] is equal to iNeedle[start...end-1] */
+		private boolean matches(long[] haystack, int pos, int start, int end){
+			for (int i = start; i < end; ++i){
+				if (!(haystack[pos+i] == iNeedle[i]))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int naive(long[] haystack, int from, int to){
+			long first = iNeedle[0];
+			for (int pos = from, last = to - iLength; pos <= last; ++pos){
+				if (haystack[pos] == first && matches(haystack, pos, 1, iLength))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int kmp(long[] haystack, int from, int to){
+			int j = 0;
+			for (int i = from; i < to; ++i){
+				while (j > 0 && !(haystack[i] == iNeedle[j]))
+					j = iNext[j-1];
+				if (haystack[i] == iNeedle[j] && ++j == iLength)
+					return i - iLength + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int horspool(long[] haystack, int from, int to){
+			int m = iLength;
+			long lastOfNeedle = iNeedle[m-1];
+			for (int pos = from; pos <= to - m; ){
+				long last = haystack[pos+m-1];
+				if (last == lastOfNeedle && matches(haystack, pos, 0, m - 1))
+					return pos;
+				pos += iShift[bucket(Long.hashCode(last))];
+			}
+			return -1;
+		}
+
+		@Override
+		protected int twoWay(long[] haystack, int from, int to){
+			int m = iLength, ell = iCritical, per = iPeriod;
+			int memory = -1;
+			for (int j = from; j <= to - m; ){
+				int i = Math.max(ell, memory) + 1;
+				while (i < m && iNeedle[i] == haystack[i+j])
+					++i;
+				if (i < m){
+					j += i - ell;
+					memory = -1;
+					continue;
+				}
+				i = ell;
+				while (i > memory && iNeedle[i] == haystack[i+j])
+					--i;
+				if (i <= memory)
+					return j;
+				j += per;
+				memory = iIsPeriodic ? m - per - 1 : -1;
+			}
+			return -1;
+		}
+	}
+
+
+	/** Pattern of objects, compared with equals (and hashCode for the shifts of Horspool) */
+	public static final class OfObjects<T> extends ArrayPattern<T[]> {
+		private final T[] iNeedle;
+
+		private OfObjects(T[] needle, Algorithm algorithm){
+			super(toIds(needle), algorithm);
+			iNeedle = needle.clone();
+			iShift  = (iAlgorithm == Algorithm.HORSPOOL) ? new int[256] : null;
+			if (iShift != null){
+				Arrays.fill(iShift, iLength);
+				for (int i = 0; i < iLength - 1; ++i){
+					iShift[bucket(Objects.hashCode(iNeedle[i]))] = iLength - 1 - i;
+				}
+			}
+		}
+
+		@Override
+		protected int length(T[] haystack){
+			return haystack.length;
+		}
+
+		/** return if haystack[pos+start...pos+end-1] is equal to iNeedle[start...end-1] */
+		private boolean matches(T[] haystack, int pos, int start, int end){
+			for (int i = start; i < end; ++i){
+				if (!(Objects.equals(haystack[pos+i], iNeedle[i])))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int naive(T[] haystack, int from, int to){
+			T first = iNeedle[0];
+			for (int pos = from, last = to - iLength; pos <= last; ++pos){
+				if (Objects.equals(haystack[pos], first) && matches(haystack, pos, 1, iLength))
+					return pos;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int kmp(T[] haystack, int from, int to){
+			int j = 0;
+			for (int i = from; i < to; ++i){
+				while (j > 0 && !(Objects.equals(haystack[i], iNeedle[j])))
+					j = iNext[j-1];
+				if (Objects.equals(haystack[i], iNeedle[j]) && ++j == iLength)
+					return i - iLength + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		protected int horspool(T[] haystack, int from, int to){
+			int m = iLength;
+			T lastOfNeedle = iNeedle[m-1];
+			for (int pos = from; pos <= to - m; ){
+				T last = haystack[pos+m-1];
+				if (Objects.equals(last, lastOfNeedle) && matches(haystack, pos, 0, m - 1))
+					return pos;
+				pos += iShift[bucket(Objects.hashCode(last))];
+			}
+			return -1;
+		}
+
+		@Override
+		protected int twoWay(T[] haystack, int from, int to){
+			int m = iLength, ell = iCritical, per = iPeriod;
+			int memory = -1;
+			for (int j = from; j <= to - m; ){
+				int i = Math.max(ell, memory) + 1;
+				while (i < m && Objects.equals(iNeedle[i], haystack[i+j]))
+					++i;
+				if (i < m){
+					j += i - ell;
+					memory = -1;
+					continue;
+				}
+				i = ell;
+				while (i > memory && Objects.equals(iNeedle[i], haystack[i+j]))
+					--i;
+				if (i <= memory)
+					return j;
+				j += per;
+				memory = iIsPeriodic ? m - per - 1 : -1;
+			}
+			return -1;
+		}
+	}
+
+
+	/** Check that every algorithm finds the same positions as FindArrayInArrayObj and time them */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(42);
+		boolean isOk = true;
+		for (int alphabet : new int[]{2, 4, 64, 256}){
+			byte[] haystack = new byte[4096];
+			for (int i = 0; i < haystack.length; ++i)
+				haystack[i] = (byte) random.nextInt(alphabet);
+			for (int m : new int[]{1, 3, 5, 12, 40}){
+				for (int t = 0; t < 50; ++t){
+					int start = random.nextInt(haystack.length - m);
+					byte[] needle = Arrays.copyOfRange(haystack, start, start + m);
+					if (t % 5 == 0)
+						needle[m-1] ^= 1; // maybe absent
+					int from = random.nextInt(start + 1);
+					int expected = FindArrayInArrayObj.getPosition(haystack, from, haystack.length, needle, 0, m);
+					Byte[] boxed = new Byte[m], boxedHaystack = new Byte[haystack.length];
+					for (int i = 0; i < m; ++i) boxed[i] = needle[i];
+					for (int i = 0; i < haystack.length; ++i) boxedHaystack[i] = haystack[i];
+					for (Algorithm algorithm : Algorithm.values()){
+						int found  = compile(needle, algorithm).indexOf(haystack, from, haystack.length);
+						int found2 = compile(boxed, algorithm).indexOf(boxedHaystack, from, haystack.length);
+						if (found != expected || found2 != expected){
+							System.out.println("Error "+algorithm+" alphabet "+alphabet+" m "+m+": "+found+", "+found2+" instead of "+expected);
+							isOk = false;
+						}
+					}
+				}
+			}
+		}
+		System.out.println("All algorithms agree with getPosition: "+isOk);
+		System.out.println(compile("=ybegin".getBytes()));
+		System.out.println(compile("\r\n.\r\n".getBytes()));
+		System.out.println(compile(new int[]{0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 1}));
+
+		// repetitive data: aaaa...a and the needle a...ab
+		byte[] haystack = new byte[1 << 22];
+		Arrays.fill(haystack, (byte) 'a');
+		byte[] needle = new byte[64];
+		Arrays.fill(needle, (byte) 'a');
+		needle[63] = 'b';
+		long start = System.nanoTime();
+		FindArrayInArrayObj.getPosition(haystack, needle);
+		System.out.println("getPosition: "+(System.nanoTime() - start) / 1000000+" ms");
+		for (Algorithm algorithm : Algorithm.values()){
+			ArrayPattern<byte[]> pattern = compile(needle, algorithm);
+			start = System.nanoTime();
+			pattern.indexOf(haystack);
+			System.out.println(algorithm+": "+(System.nanoTime() - start) / 1000000+" ms");
+		}
+		System.out.println("chosen: "+compile(needle).getAlgorithm());
+
+		// lazy streams of positions
+		OfBytes dots = compile("..".getBytes());
+		byte[] text = "a....b..c".getBytes();
+		System.out.println("overlapping: "+Arrays.toString(dots.findAll(text).toArray()));
+		System.out.println("not overlapping: "+Arrays.toString(dots.findAll(text, 0, text.length, false).toArray()));
+		System.out.println("first 2: "+Arrays.toString(dots.findAll(text).limit(2).toArray()));
+
+		random.nextBytes(haystack);
+		OfBytes pair = compile(new byte[]{ 42, 43 });
+		start = System.nanoTime();
+		long count = pair.findAll(haystack).count();
+		long sequentialNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		long parallelCount = pair.findAll(haystack).parallel().count();
+		System.out.println(count+" matches in "+sequentialNanos / 1000000+" ms, "
+				+parallelCount+" in "+(System.nanoTime() - start) / 1000000+" ms in parallel");
+	}
+
+}
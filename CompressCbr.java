@@ -5,41 +5,116 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.DirectoryStream;
 import java.io.IOException;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Iterator;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.NodeList;
 
 /**
  * CompressCbr allows to compress all the pictures within a folder.
- * Syntax: java CompressCbr 'folder containing the images'
+ * Syntax: java CompressCbr [-t nbThreads] [-p] [-m memoryMB] [-w maxWidth] [-h maxHeight] [-dpi dpi] [-s pageKB | -S volumeMB] [-q nbQualityProbes] [-k minSavingsPercent] [-g grayTolerance] [-P] 'folder containing the images' or 'archive.cbz'
  *
  * The output will be in a folder compressed_'nameOfOriginalFolder'
  * it will contain all the pictures compressed in jpeg
  * if some compression failed, it will copy it into the output folder
  * (This is done for CBR or CBZ compression)
  *
+ * The output folder keeps a manifest of the pages done (cf CompressManifest):
+ * running it again (after a crash or after adding pages) only processes
+ * the new or modified images, unless the settings have changed
+ *
+ * To compress a whole library (all the folders and archives under a folder) use CompressLibrary
+ *
+ * The time spent reading, decoding, encoding and writing the pages is measured (cf CompressStats):
+ * it is displayed at the end, written in compress_'name'.stats.properties and sent as JFR events
+ * (java -XX:StartFlightRecording=filename=compress.jfr CompressCbr ...), -P displays a progress line
+ *
  * In order to compress a CBR or a CBZ that is too big
  * - extract it in a folder (unrar or unzip)
  * - run java CompressCbr on it
  * - check the quality
  * - rar or zip the output folder to make a CBR or CBZ
  *
+ * A CBZ (or a CBR that is in fact a zip) can also be given directly:
+ * its entries are decoded and re-encoded in memory and written in the same order
+ * in the archive compress_'nameOfOriginalArchive' (the other entries are copied as they are)
+ *
+ * With -t the pages are compressed in parallel on nbThreads threads
+ * (the output is still displayed in the order of the pages)
+ * With -p they go through a pipeline where reading, decoding, encoding and writing
+ * are separate stages with their own threads (cf CompressPipeline)
+ * Whatever the mode, an image is only decoded when its size (read from its header)
+ * fits in the memory budget (-m, 60% of the heap by default)
+ *
+ * The pages scanned at a higher resolution than needed can be reduced with
+ * -w / -h (maximum size in pixels) and -dpi (resolution, when the image gives its own):
+ * they are decoded subsampled (cf ImageReadParam.setSourceSubsampling)
+ * at no less than twice the final size, and then smoothly downscaled
+ *
+ * Instead of a fixed quality, a size can be given for each page (-s) or for the whole
+ * volume (-S, shared by the pages in proportion of their original size): each image is then
+ * encoded at the highest quality that fits, found by encoding several qualities in parallel
+ * from the same decoded image (-q of them, 3 by default, cf encodeToSize): only when the pages
+ * are compressed one at a time, otherwise the search is a sequential dichotomy in each worker
+ *
+ * The JPEG that wouldn't get smaller enough (quality estimated from their quantisation tables,
+ * bytes per pixel, size budget) are kept as they are without being decoded (cf getSkipReason),
+ * -k gives the minimal savings in percent (10 by default, 0 to always re-encode)
+ *
+ * The pages that are black and white (all their channels differ by at most -g, 12 by default,
+ * -1 to keep the colours) are encoded with a single gray channel (cf toGrayIfNeutral)
+ *
  *
  * Example:
  * mb@Tieum-Latitude:~/tmp/compress_cbr$ java CompressCbr test
@@ -73,9 +148,79 @@ public class CompressCbr {
 	/** Quality JPEG compression factor */
 	public static float iJpgCompressionFactor = 0.5f;
 
+	/** Number of threads used to compress the pages (1: sequential) */
+	public static int iNbThreads = 1;
+
+	/** JPEG writer of each thread (looking one up for each image is costly) */
+	private static final ThreadLocal<ImageWriter> sJpgWriter = ThreadLocal.withInitial(CompressCbr::newJpgWriter);
+
+	/** Use the staged pipeline (read, decode, encode, write) instead of one task per page */
+	public static boolean iIsPipeline = false;
+
+	/** Maximum width of the compressed images (0: no limit) */
+	public static int iMaxWidth = 0;
+
+	/** Maximum height of the compressed images (0: no limit) */
+	public static int iMaxHeight = 0;
+
+	/** Resolution (dpi) of the compressed images when the original one is known (0: keep it) */
+	public static int iTargetDpi = 0;
+
+	/** Size budget of each compressed image in bytes (0: use iJpgCompressionFactor) */
+	public static long iTargetPageSize = 0;
+
+	/** Size budget of the whole volume in bytes, shared by its images (0: no budget) */
+	public static long iTargetVolumeSize = 0;
+
+	/** Lowest quality used to fit a size budget */
+	public static float iMinQuality = 0.05f;
+
+	/** The quality search stops when the interval is smaller than this */
+	public static float iQualityPrecision = 0.02f;
+
+	/** Number of qualities encoded in parallel at each round of the search
+	 *  (when the pages are compressed one at a time, otherwise 1) */
+	public static int iNbQualityProbes = 3;
+
+	/** Threads encoding the quality probes (created when needed, of iNbQualityProbes threads) */
+	private static ExecutorService sProbeExecutor;
+
+	/** Minimal part of the size a JPEG should lose to be re-encoded (0: always re-encode) */
+	public static float iMinSavings = 0.1f;
+
+	/** A JPEG with less bytes per pixel is kept as it is */
+	public static double iMinBytesPerPixel = 0.03;
+
+	/** Maximum difference between the channels of a pixel considered gray (negative: keep the colours) */
+	public static int iGrayTolerance = 12;
+
+	/** Number of pixels sampled to detect the colour pages quickly */
+	public static int iGraySamples = 4096;
+
+	/** Display a line for each page (a library displays only a summary of each volume) */
+	public static boolean iIsVerbose = true;
+
+	/** Display a progress line (pages done, pages/s) on stderr */
+	public static boolean iIsProgress = false;
+
+	/** Memory allowed for the decoded images in bytes (0: 60% of the maximum heap) */
+	public static long iMemoryBudget = 0;
+
+	/** Memory budget shared by all the compressions (created from iMemoryBudget) */
+	private static MemoryBudget sMemoryBudget;
+
+	/** Largest memory estimated for an image (reserved for those whose header can't be read) */
+	private static final AtomicLong sLargestDecodedSize = new AtomicLong();
+
 	/** Regex for to get the path, image name and extension*/
 	public static String sImageExtensions = "^(.*)/([^/]*)\\.(Jpg|jpeg|png|gif)$";
 
+	/** Extension of the statistics written next to the destination (machine-readable, cf CompressStats) */
+	public static String sStatsExtension = ".stats.properties";
+
+	/** Regex of the archives that can be compressed directly (they must be zip files) */
+	public static String sArchiveExtensions = "^.*\\.(cbz|zip|cbr)$";
+
 	/** Folder containing the images (extracted cbr or cbz) */
 	private String iFolderName;
 
@@ -97,6 +242,33 @@ public class CompressCbr {
 	 **/
 	private List<String> iImagesNotCompressed;
 
+	/** Executor used to compress the pages (null to create one of iNbThreads threads) */
+	private ExecutorService iExecutor;
+
+	/** Archive containing the images (null if we work on a folder) */
+	private ZipFile iZipFile;
+
+	/** Entries of the archive in their order */
+	private List<ZipEntry> iZipEntries;
+
+	/** Total size of the original images (to share iTargetVolumeSize) */
+	private long iTotalImageSize;
+
+	/** Images kept as they are with the reason (until they are displayed) */
+	private final Map<String, String> iKeptPages = new ConcurrentHashMap<>();
+
+	/** Measures of the compression (can be shared by several volumes) */
+	private CompressStats iStats = new CompressStats();
+
+	/** Number of images kept as they are */
+	private final AtomicInteger iNbKept = new AtomicInteger();
+
+	/** Number of images found (before removing the ones already done) */
+	private int iNbImages;
+
+	/** Pages already done in the destination folder (null for an archive) */
+	private CompressManifest iManifest;
+
 
 
 	public CompressCbr(String aFolderName){
@@ -122,6 +294,11 @@ public class CompressCbr {
 		iFileExtPattern = Pattern.compile(sImageExtensions, Pattern.CASE_INSENSITIVE);
 
 		iImagePathList = new ArrayList<>();
+		if (!Files.isDirectory(iPath)
+				&& Pattern.compile(sArchiveExtensions, Pattern.CASE_INSENSITIVE).matcher(iFolderName).matches()){
+			return checkArchive();
+		}
+
 		try{
 			DirectoryStream<Path> stream;
 			stream = Files.newDirectoryStream(iPath);
@@ -132,6 +309,7 @@ public class CompressCbr {
 				if (m.matches()){
 					debug(m.group(3)+" | "+m.group(2));
 					iImagePathList.add(path);
+					iTotalImageSize += Files.size(path);
 				}
 			}
 			stream.close();
@@ -141,9 +319,64 @@ public class CompressCbr {
 			return false;
 		}
 
+		iNbImages = iImagePathList.size();
+		return true;
+	}
+
+	/** Open the archive and list its entries
+	 *
+	 * @return false if the archive isn't a zip file
+	 */
+	private boolean checkArchive(){
+		try {
+			iZipFile = new ZipFile(iPath.toFile());
+		} catch (IOException e){
+			println("The archive is not a zip file: "+iFolderName);
+			return false;
+		}
+
+		iZipEntries = new ArrayList<>();
+		Enumeration<? extends ZipEntry> entries = iZipFile.entries();
+		while (entries.hasMoreElements()){
+			ZipEntry entry = entries.nextElement();
+			if (!entry.isDirectory()){
+				iZipEntries.add(entry);
+				if (isImageEntry(entry)){
+					// only used for the display (cf printFileList)
+					iImagePathList.add(Paths.get(entry.getName()));
+					iTotalImageSize += Math.max(0, entry.getSize());
+				}
+			}
+		}
+		iNbImages = iImagePathList.size();
 		return true;
 	}
 
+	/** @return if the entry of the archive is an image to compress */
+	private boolean isImageEntry(ZipEntry entry){
+		// the regex expects a folder before the name of the image
+		return iFileExtPattern.matcher("/"+entry.getName()).matches();
+	}
+
+	/** Use an executor (a ForkJoinPool for example) shared with other volumes
+	 *  instead of creating one of iNbThreads threads
+	 *
+	 * @param aExecutor executor used to compress the pages (not shut down by CompressCbr)
+	 */
+	public void setExecutor(ExecutorService aExecutor){
+		iExecutor = aExecutor;
+	}
+
+	/** @return the number of pages the executor compresses at the same time (1 without executor) */
+	private static int getParallelism(ExecutorService executor){
+		if (executor instanceof ForkJoinPool){
+			return ((ForkJoinPool) executor).getParallelism();
+		} else if (executor instanceof ThreadPoolExecutor){
+			return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+		}
+		return (executor == null) ? 1 : Math.max(1, iNbThreads);
+	}
+
 	public void printFileList(){
 		println("There are "+iImagePathList.size()+" files in the folder");
 		for (Path path : iImagePathList){
@@ -153,35 +386,59 @@ public class CompressCbr {
 
 	/** @return the number of images that have been successfully compressed */
 	public int doCompression(){
+		if (iZipFile != null){
+			return doArchiveCompression();
+		}
 
 		int nbCompressed = 0;
 
-		// create destination folder or do nothing if it exists already
+		// create destination folder or resume the previous compression if it exists already
 		Path destFolder = Paths.get(iFolderDest);
-		if (Files.exists(destFolder)) {
-			exit(1, "The destination folder already exists... "+iFolderDest);
+		iManifest = new CompressManifest(destFolder, getSettings());
+		boolean isResume = false;
+		if (Files.exists(destFolder) && !CompressManifest.exists(destFolder)) {
+			if (containsFiles(destFolder)){
+				exit(1, "The destination folder already exists (without manifest)... "+iFolderDest);
+			}
+			// only the folders of other volumes (cf CompressLibrary)
+		} else if (Files.exists(destFolder)) {
+			try {
+				isResume = iManifest.load();
+			} catch (IOException e){
+				println("Error reading the manifest: "+e);
+			}
+			if (!isResume){
+				println("The settings have changed, all the images will be compressed again");
+			}
 		} else {
 			try {
-				Files.createDirectory(destFolder);
+				Files.createDirectories(destFolder);
 			} catch (IOException e) {
 				println("Issue creating destination folder...");
 				System.err.println(e);
 				return nbCompressed;
 			}
 		}
+		try {
+			iManifest.open(isResume);
+		} catch (IOException e){
+			println("Issue creating the manifest...");
+			System.err.println(e);
+			return nbCompressed;
+		}
 
 		iImagesNotCompressed = new ArrayList<String>();
+		if (isResume){
+			int nbDone = removeDonePages();
+			println(nbDone+" images were already done (cf "+CompressManifest.fileName+")");
+		}
 		println("There are "+iImagePathList.size()+" images to compress");
-		for (Path path : iImagePathList){
-			String fileName = path.toString();
-			println("- " + fileName);
-			try{
-				compressImage(fileName);
-				++nbCompressed;
-			} catch(Exception e){
-				e.printStackTrace();
-				iImagesNotCompressed.add(fileName);
-			}
+		iStats.addExpectedPages(iImagePathList.size());
+
+		if (iIsPipeline){
+			nbCompressed = doPipelineCompression();
+		} else {
+			nbCompressed = doTaskCompression();
 		}
 
 		if (iImagesNotCompressed.size()>0){
@@ -194,6 +451,7 @@ public class CompressCbr {
 					destImagePath = iFolderDest+"/"+m.group(2)+".jpg";
 					try{
 						Files.copy(Paths.get(image), Paths.get(destImagePath), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+						recordPage(image, null, CompressManifest.statusCopied);
 					} catch (IOException e){
 						println("Error copying '"+image+"' to '"+destImagePath+"'");
 						e.printStackTrace();
@@ -201,38 +459,1049 @@ public class CompressCbr {
 				}
 			}
 		}
+		iManifest.close();
 
 		return nbCompressed;
 	}
 
+	/** @return if a folder contains files (and not only folders) */
+	public static boolean containsFiles(Path folder){
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, Files::isRegularFile)){
+			return stream.iterator().hasNext();
+		} catch (IOException e){
+			return true;
+		}
+	}
+
+	/** Remove the pages that the manifest says are already done from the list of images
+	 *
+	 * @return the number of pages removed
+	 */
+	private int removeDonePages(){
+		int nbDone = 0;
+		for (Iterator<Path> it = iImagePathList.iterator(); it.hasNext(); ){
+			Path path = it.next();
+			try {
+				if (iManifest.isDone(path, Paths.get(getDestImagePath(path.toString())))){
+					debug("already done: "+path);
+					it.remove();
+					++nbDone;
+				}
+			} catch (IOException e){
+				debug("Can't check "+path+": "+e);
+			}
+		}
+		return nbDone;
+	}
+
+	/** Record a page written in the destination folder in the manifest
+	 *
+	 * @param aImagePath path of the source image
+	 * @param data       its content if it has already been read (null otherwise)
+	 * @param status     CompressManifest.statusCompressed or statusCopied
+	 */
+	private void recordPage(String aImagePath, byte[] data, String status){
+		if (iManifest == null){
+			return;
+		}
+		try {
+			iManifest.record(Paths.get(aImagePath), data, status);
+		} catch (IOException e){
+			println("Error updating the manifest for "+aImagePath+": "+e);
+		}
+	}
 
+	/** @return the settings that change the output (stored in the manifest) */
+	public static String getSettings(){
+		return "quality="+iJpgCompressionFactor+" pageSize="+iTargetPageSize+" volumeSize="+iTargetVolumeSize+" minSavings="+iMinSavings+" grayTolerance="+iGrayTolerance
+				+" maxWidth="+iMaxWidth+" maxHeight="+iMaxHeight+" dpi="+iTargetDpi;
+	}
 
-	public void compressImage(String aImagePath) throws IOException {
+	/** Compress the images of the folder with the staged pipeline
+	 *
+	 * @return the number of images that have been successfully compressed
+	 */
+	private int doPipelineCompression(){
+		CompressPipeline.Source source = new CompressPipeline.Source() {
+			public int size()                 { return iImagePathList.size(); }
+			public String getName(int index)  { return iImagePathList.get(index).toString(); }
+			public boolean isImage(int index) { return true; }
+			public InputStream open(int index) throws IOException {
+				return Files.newInputStream(iImagePathList.get(index));
+			}
+		};
 
+		CompressPipeline.Sink sink = (index, name, compressed, original, isKept, error) -> {
+			printPage(name);
+			printKept(name);
+			if (isKept){
+				linkOrCopy(Paths.get(name), Paths.get(getDestImagePath(name)), original);
+				recordPage(name, original, CompressManifest.statusCopied);
+				return;
+			}
+			if (compressed == null){
+				if (error != null){
+					error.printStackTrace();
+				}
+				iImagesNotCompressed.add(name);
+				return;
+			}
+			Files.write(Paths.get(getDestImagePath(name)), compressed);
+			recordPage(name, original, CompressManifest.statusCompressed);
+		};
+
+		try {
+			return new CompressPipeline(this).run(source, sink);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	/** Compress the images of the folder with one task per page
+	 *
+	 * @return the number of images that have been successfully compressed
+	 */
+	private int doTaskCompression(){
+		int nbCompressed = 0;
+
+		ExecutorService executor = iExecutor;
+		if (executor == null && iNbThreads > 1){
+			executor = Executors.newFixedThreadPool(iNbThreads);
+		}
+
+		// Each page gives back the exception that made it fail (null if it was compressed)
+		List<Future<Exception>> results = new ArrayList<>(iImagePathList.size());
+		for (Path path : iImagePathList){
+			String fileName = path.toString();
+			if (executor == null){
+				results.add(CompletableFuture.completedFuture(compressPage(fileName)));
+			} else {
+				results.add(executor.submit(() -> compressPage(fileName)));
+			}
+		}
+
+		// the results are collected in the order of the pages
+		for (int i = 0; i < iImagePathList.size(); ++i){
+			String fileName = iImagePathList.get(i).toString();
+			printPage(fileName);
+			Exception error;
+			try {
+				error = results.get(i).get();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				error = e;
+			} catch (ExecutionException e){
+				error = e;
+			}
+
+			if (error == null){
+				if (!printKept(fileName)){
+					++nbCompressed;
+				}
+			} else {
+				error.printStackTrace();
+				iImagesNotCompressed.add(fileName);
+			}
+		}
+
+		if (executor != null && executor != iExecutor){
+			executor.shutdown();
+		}
+		return nbCompressed;
+	}
+
+
+
+	/** Compress the images of a zip archive directly into a new archive
+	 *  - the entries are written in the same order
+	 *  - the images are decoded and encoded in memory (stored as they are already compressed)
+	 *  - the other entries and the images that couldn't be compressed are copied as they are
+	 *  At most 2 images per thread of the executor are kept in memory waiting to be written.
+	 *
+	 * @return the number of images that have been successfully compressed
+	 */
+	public int doArchiveCompression(){
+		int nbCompressed = 0;
+
+		Path destArchive = Paths.get(iFolderDest);
+		if (Files.exists(destArchive)) {
+			exit(1, "The destination archive already exists... "+iFolderDest);
+		}
+
+		iImagesNotCompressed = new ArrayList<String>();
+		println("There are "+iImagePathList.size()+" images to compress");
+		iStats.addExpectedPages(iImagePathList.size());
+
+		ExecutorService executor = iExecutor;
+		if (executor == null && iNbThreads > 1){
+			executor = Executors.newFixedThreadPool(iNbThreads);
+		}
+		int window = 2 * getParallelism(executor);
+
+		Set<String> names = new HashSet<>();
+		try {
+			if (destArchive.getParent() != null){
+				Files.createDirectories(destArchive.getParent());
+			}
+		} catch (IOException e){
+			println("Issue creating the folder of "+iFolderDest);
+			System.err.println(e);
+			return nbCompressed;
+		}
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(destArchive))){
+			if (iIsPipeline){
+				return doArchivePipelineCompression(zos, names);
+			}
+
+			Deque<Future<byte[]>> pending = new ArrayDeque<>();
+			int next = 0; // next entry to submit
+			for (ZipEntry entry : iZipEntries){
+				// keep the window of images being compressed full
+				while (next < iZipEntries.size() && pending.size() < window){
+					ZipEntry toCompress = iZipEntries.get(next++);
+					if (!isImageEntry(toCompress)){
+						pending.addLast(CompletableFuture.completedFuture(null));
+					} else if (executor == null){
+						pending.addLast(CompletableFuture.completedFuture(compressEntry(toCompress)));
+					} else {
+						pending.addLast(executor.submit(() -> compressEntry(toCompress)));
+					}
+				}
+
+				byte[] compressed;
+				try {
+					compressed = pending.pollFirst().get();
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					compressed = null;
+				} catch (ExecutionException e){
+					compressed = null;
+				}
+
+				if (!isImageEntry(entry)){
+					copyEntry(zos, entry, entry.getName(), names);
+					continue;
+				}
+
+				printPage(entry.getName());
+				boolean isKept = printKept(entry.getName());
+				if (compressed == null){
+					iImagesNotCompressed.add(entry.getName());
+					copyEntry(zos, entry, entry.getName(), names);
+					continue;
+				}
+
+				long start = System.nanoTime();
+				putCompressedEntry(zos, entry, compressed, names);
+				iStats.addWriteNanos(System.nanoTime() - start);
+				if (!isKept){
+					++nbCompressed;
+				}
+			}
+		} catch (IOException e){
+			println("Error writing the archive "+iFolderDest);
+			e.printStackTrace();
+		} finally {
+			if (executor != null && executor != iExecutor){
+				executor.shutdown();
+			}
+			try {
+				iZipFile.close();
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+			printArchiveFailures();
+		}
+
+		return nbCompressed;
+	}
+
+	/** Compress the entries of the archive with the staged pipeline
+	 *
+	 * @param zos   the destination archive
+	 * @param names names already used in the destination archive
+	 * @return the number of images that have been successfully compressed
+	 */
+	private int doArchivePipelineCompression(ZipOutputStream zos, Set<String> names){
+		CompressPipeline.Source source = new CompressPipeline.Source() {
+			public int size()                 { return iZipEntries.size(); }
+			public String getName(int index)  { return iZipEntries.get(index).getName(); }
+			public boolean isImage(int index) { return isImageEntry(iZipEntries.get(index)); }
+			public InputStream open(int index) throws IOException {
+				return iZipFile.getInputStream(iZipEntries.get(index));
+			}
+		};
+
+		CompressPipeline.Sink sink = (index, name, compressed, original, isKept, error) -> {
+			ZipEntry entry = iZipEntries.get(index);
+			if (compressed != null || isKept){
+				printPage(name);
+				printKept(name);
+				putCompressedEntry(zos, entry, isKept ? original : compressed, names);
+				return;
+			}
+			if (isImageEntry(entry)){
+				printPage(name);
+				println("Error compressing "+name+": "+error);
+				iImagesNotCompressed.add(name);
+			}
+			if (original == null){
+				copyEntry(zos, entry, name, names);
+			} else {
+				ZipEntry dest = new ZipEntry(getUnusedName(name, names));
+				dest.setTime(entry.getTime());
+				zos.putNextEntry(dest);
+				zos.write(original);
+				zos.closeEntry();
+			}
+		};
+
+		try {
+			return new CompressPipeline(this).run(source, sink);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	/** Write a compressed image in the archive (stored as it is already compressed)
+	 *
+	 * @param zos        the destination archive
+	 * @param entry      the original entry
+	 * @param compressed the compressed image
+	 * @param names      names already used in the destination archive
+	 */
+	private void putCompressedEntry(ZipOutputStream zos, ZipEntry entry, byte[] compressed, Set<String> names) throws IOException {
+		// page.png and page.jpg in the same archive: the second one becomes page_1.jpg
+		ZipEntry dest = new ZipEntry(getUnusedName(entry.getName().replaceFirst("\\.[^./]*$", ".jpg"), names));
+		CRC32 crc = new CRC32();
+		crc.update(compressed);
+		dest.setMethod(ZipEntry.STORED);
+		dest.setSize(compressed.length);
+		dest.setCompressedSize(compressed.length);
+		dest.setCrc(crc.getValue());
+		dest.setTime(entry.getTime());
+		zos.putNextEntry(dest);
+		zos.write(compressed);
+		zos.closeEntry();
+	}
+
+	/** Give a name not used yet in the destination archive and reserve it
+	 *
+	 * @param name  the name wanted (name_1.ext, name_2.ext... if it is already used)
+	 * @param names names already used in the destination archive (updated)
+	 * @return the name to use
+	 */
+	private String getUnusedName(String name, Set<String> names){
+		if (names.add(name)){
+			return name;
+		}
+		int dot = name.lastIndexOf('.');
+		if (dot <= name.lastIndexOf('/')){
+			dot = name.length();
+		}
+		String unused;
+		for (int i = 1; !names.add(unused = name.substring(0, dot)+"_"+i+name.substring(dot)); ++i);
+		println("Duplicate entry "+name+" renamed "+unused);
+		return unused;
+	}
+
+	/** Display the images of the archive that couldn't be compressed */
+	private void printArchiveFailures(){
+		if (iImagesNotCompressed.size()>0){
+			println("\n\n"+iImagesNotCompressed.size()+" images couldn't be compressed, they were copied as they are:");
+			for (String image : iImagesNotCompressed){
+				println("- "+image);
+			}
+		}
+	}
+
+	/** Compress an image of the archive in memory
+	 *
+	 * @param entry the image
+	 * @return the compressed image or null if the compression failed
+	 */
+	private byte[] compressEntry(ZipEntry entry){
+		ByteArrayOutputStream os = new ByteArrayOutputStream((int) Math.max(32, entry.getSize() / 2));
+		CompressStats.PageTimes times = new CompressStats.PageTimes(entry.getName());
+		try (InputStream is = iZipFile.getInputStream(entry)){
+			long start = System.nanoTime();
+			byte[] data = is.readAllBytes();
+			times.readNanos  = System.nanoTime() - start;
+			times.inputBytes = data.length;
+
+			String reason = getSkipReason(data);
+			if (reason == null){
+				compressImage(data, os, times);
+				data = os.toByteArray();
+			} else {
+				keepPage(entry.getName(), reason);
+			}
+			// the archive is written by a single thread which adds its time (cf addWriteNanos)
+			times.outputBytes = data.length;
+			iStats.add(times);
+			return data;
+		} catch (Exception e){
+			println("Error compressing "+entry.getName()+": "+e);
+			return null;
+		}
+	}
+
+	/** Copy an entry of the archive as it is
+	 *
+	 * @param zos   the destination archive
+	 * @param entry the entry to copy
+	 * @param name  its name in the destination archive
+	 * @param names names already used in the destination archive
+	 */
+	private void copyEntry(ZipOutputStream zos, ZipEntry entry, String name, Set<String> names) throws IOException {
+		ZipEntry dest = new ZipEntry(getUnusedName(name, names));
+		dest.setTime(entry.getTime());
+		zos.putNextEntry(dest);
+		try (InputStream is = iZipFile.getInputStream(entry)){
+			is.transferTo(zos);
+		}
+		zos.closeEntry();
+	}
+
+	/** Compress a page catching any error
+	 *
+	 * @param aImagePath path of the image
+	 * @return the error that made the compression fail or null if it succeeded
+	 */
+	private Exception compressPage(String aImagePath){
+		try{
+			compressImage(aImagePath); // recorded in the manifest with the bytes already read
+			return null;
+		} catch(Exception e){
+			return e;
+		}
+	}
+
+	/** @return the path of the compressed image in the destination folder */
+	private String getDestImagePath(String aImagePath){
 		Matcher m = iFileExtPattern.matcher(aImagePath);
 		String destImagePath = "";
 		if (m.matches()){
 			destImagePath = iFolderDest+"/"+m.group(2)+".jpg";
 			debug("destination: "+destImagePath);
 		}
+		return destImagePath;
+	}
 
-		File imageFile = new File(aImagePath);
-		File compressedImageFile = new File(destImagePath);
+	public void compressImage(String aImagePath) throws IOException {
 
-		InputStream is = new FileInputStream(imageFile);
-		OutputStream os = new FileOutputStream(compressedImageFile);
+		Path imageFile = Paths.get(aImagePath);
+		Path compressedImageFile = Paths.get(getDestImagePath(aImagePath));
 
+		CompressStats.PageTimes times = new CompressStats.PageTimes(aImagePath);
+		long start = System.nanoTime();
+		byte[] data = Files.readAllBytes(imageFile);
+		times.readNanos  = System.nanoTime() - start;
+		times.inputBytes = data.length;
 
-		// create a BufferedImage as the result of decoding the supplied InputStream
-		BufferedImage image = ImageIO.read(is);
+		String reason = getSkipReason(data);
+		if (reason != null){
+			keepPage(aImagePath, reason);
+			start = System.nanoTime();
+			linkOrCopy(imageFile, compressedImageFile, data);
+			times.writeNanos  = System.nanoTime() - start;
+			times.outputBytes = data.length;
+			iStats.add(times);
+			recordPage(aImagePath, data, CompressManifest.statusCopied);
+			return;
+		}
 
-		// get all image writers for JPG format
-		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+		// compressed in memory so the write can be measured apart
+		ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(32, data.length / 2));
+		compressImage(data, os, times);
 
-		if (!writers.hasNext())
-			throw new IllegalStateException("No writers found");
+		start = System.nanoTime();
+		try (OutputStream fos = Files.newOutputStream(compressedImageFile)){
+			os.writeTo(fos);
+		}
+		times.writeNanos  = System.nanoTime() - start;
+		times.outputBytes = os.size();
+		iStats.add(times);
+		recordPage(aImagePath, data, CompressManifest.statusCompressed);
+	}
+
+	/** Put an image as it is in the destination folder (hard link if possible)
+	 *
+	 * @param source the original image
+	 * @param dest   its path in the destination folder
+	 * @param data   its content (written if the link can't be created)
+	 */
+	private static void linkOrCopy(Path source, Path dest, byte[] data) throws IOException {
+		Files.deleteIfExists(dest);
+		try {
+			Files.createLink(dest, source);
+		} catch (IOException|UnsupportedOperationException e){
+			debug("Can't link "+dest+": "+e);
+			Files.write(dest, data);
+		}
+	}
+
+	/** Check if re-encoding an image is worth it
+	 *  Only the JPEG are kept as they are, when their header says that:
+	 *  - they are already under the size budget of the page
+	 *  - or they are already very small (less than iMinBytesPerPixel)
+	 *  - or their quality (estimated from the quantisation table) is so close to
+	 *    iJpgCompressionFactor that less than iMinSavings would be saved
+	 *  They are always re-encoded when they have to be reduced.
+	 *
+	 * @param data the original image
+	 * @return why it is kept as it is, or null if it has to be compressed
+	 */
+	public String getSkipReason(byte[] data){
+		if (iMinSavings <= 0){
+			return null;
+		}
+		JpegHeader header = JpegHeader.read(data);
+		if (header == null
+				|| (iMaxWidth  > 0 && header.width  > iMaxWidth)
+				|| (iMaxHeight > 0 && header.height > iMaxHeight)
+				|| iTargetDpi > 0){
+			return null;
+		}
+
+		long budget = getPageBudget(data.length);
+		if (budget > 0){
+			return (data.length <= budget) ? "already under the budget ("+data.length+" bytes)" : null;
+		}
+
+		double bytesPerPixel = header.getBytesPerPixel(data.length);
+		if (bytesPerPixel < iMinBytesPerPixel){
+			return "already "+Math.round(bytesPerPixel * 1000) / 1000.0+" bytes per pixel";
+		}
+
+		if (header.quality > 0){
+			int quality = Math.round(iJpgCompressionFactor * 100);
+			double savings = 1 - JpegHeader.getRelativeSize(quality) / JpegHeader.getRelativeSize(header.quality);
+			if (savings < iMinSavings){
+				return "quality "+header.quality+", about "+Math.round(savings * 100)+"% saved at quality "+quality;
+			}
+		}
+		return null;
+	}
+
+	/** Remember why an image was kept as it is (displayed with the page, cf printKept) */
+	public void keepPage(String name, String reason){
+		iKeptPages.put(name, reason);
+	}
+
+	/** Display why an image was kept as it is (if it was)
+	 *
+	 * @return true if it was kept (it isn't counted as compressed)
+	 */
+	private boolean printKept(String name){
+		String reason = iKeptPages.remove(name);
+		if (reason == null){
+			return false;
+		}
+		iNbKept.incrementAndGet();
+		if (iIsVerbose){
+			println("  kept as it is: "+reason);
+		}
+		return true;
+	}
+
+	/** Display the page being written (unless iIsVerbose is false) */
+	private static void printPage(String name){
+		if (iIsVerbose){
+			println("- " + name);
+		}
+	}
+
+	/** Decode an image and encode it in JPEG
+	 *
+	 * @param is stream of the original image
+	 * @param os stream where to write the JPEG
+	 */
+	public void compressImage(InputStream is, OutputStream os) throws IOException {
+		// the encoded image is small compared to the decoded one, let's keep it in memory
+		compressImage(is.readAllBytes(), os, new CompressStats.PageTimes(null));
+	}
+
+	/** Decode an image and encode it in JPEG
+	 *
+	 * @param data  the original image
+	 * @param os    stream where to write the JPEG
+	 * @param times where to add the decode and encode times
+	 */
+	private void compressImage(byte[] data, OutputStream os, CompressStats.PageTimes times) throws IOException {
+		// wait until there is enough memory to decode the image
+		long reserved = reserveMemory(data);
+		try {
+			// create a BufferedImage as the result of decoding the supplied InputStream
+			long start = System.nanoTime();
+			BufferedImage image = decodeImage(data);
+			long decoded = System.nanoTime();
+			times.decodeNanos += decoded - start;
+
+			encodePage(image, data.length, os);
+			times.encodeNanos += System.nanoTime() - decoded;
+		} finally {
+			releaseMemory(reserved);
+		}
+	}
+
+	/** Decode an image
+	 *
+	 * @param data the encoded image
+	 * @return the image or null if there is no decoder for it
+	 */
+	public BufferedImage decodeImage(byte[] data) throws IOException {
+		try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))){
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()){
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				// the metadata are only needed to know the resolution
+				reader.setInput(iis, true, iTargetDpi <= 0);
+
+				// when the image is reduced, skip the pixels we don't need while decoding
+				double scale = getScale(reader);
+				int subsampling = getSubsampling(scale);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (subsampling > 1){
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				int width  = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				BufferedImage image = reader.read(0, param);
+
+				if (scale < 1){
+					image = downscale(image,
+							(int) Math.max(1, Math.round(width  * scale)),
+							(int) Math.max(1, Math.round(height * scale)));
+				}
+				return image;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/** Scale to apply to an image so it fits iMaxWidth, iMaxHeight and iTargetDpi
+	 *
+	 * @param reader reader whose input is set on the image
+	 * @return the scale (1 if the image doesn't need to be reduced, it is never enlarged)
+	 */
+	public static double getScale(ImageReader reader) throws IOException {
+		double scale = 1;
+		if (iMaxWidth > 0){
+			scale = Math.min(scale, (double) iMaxWidth / reader.getWidth(0));
+		}
+		if (iMaxHeight > 0){
+			scale = Math.min(scale, (double) iMaxHeight / reader.getHeight(0));
+		}
+		if (iTargetDpi > 0){
+			double dpi = getDpi(reader);
+			if (dpi > 0){
+				scale = Math.min(scale, iTargetDpi / dpi);
+			}
+		}
+		return scale;
+	}
+
+	/** Subsampling to use while decoding an image that will be reduced
+	 *  The image is decoded at least at twice its final size so the downscale can smooth it
+	 *  (subsampling alone just drops pixels)
+	 *
+	 * @param scale scale of the final image
+	 * @return the subsampling in both directions (1: every pixel is read)
+	 */
+	public static int getSubsampling(double scale){
+		return (int) Math.max(1, Math.floor(1 / (2 * scale)));
+	}
+
+	/** Resolution of an image from its standard metadata (JFIF density, PNG pHYs...)
+	 *
+	 * @param reader reader whose input is set on the image (with its metadata)
+	 * @return the resolution in dots per inch (0 if unknown)
+	 */
+	public static double getDpi(ImageReader reader){
+		try {
+			IIOMetadata metadata = reader.getImageMetadata(0);
+			if (metadata == null || !metadata.isStandardMetadataFormatSupported()){
+				return 0;
+			}
+			IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+			NodeList nodes = root.getElementsByTagName("VerticalPixelSize");
+			if (nodes.getLength() == 0){
+				return 0;
+			}
+			// size of a pixel in millimeters
+			double pixelSize = Double.parseDouble(((IIOMetadataNode) nodes.item(0)).getAttribute("value"));
+			return (pixelSize > 0) ? 25.4 / pixelSize : 0;
+		} catch (IOException|RuntimeException e){
+			debug("No resolution: "+e);
+			return 0;
+		}
+	}
+
+	/** Reduce an image with a good quality
+	 *  (its size is divided by 2 at most at each step so no pixel is ignored)
+	 *
+	 * @param image  the image to reduce
+	 * @param width  width of the result
+	 * @param height height of the result
+	 * @return the reduced image (RGB or gray, without transparency, for JPEG)
+	 */
+	public static BufferedImage downscale(BufferedImage image, int width, int height){
+		int type = (image.getType() == BufferedImage.TYPE_BYTE_GRAY) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+		BufferedImage result = image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		do {
+			w = Math.max(width,  w / 2);
+			h = Math.max(height, h / 2);
+			BufferedImage step = new BufferedImage(w, h, type);
+			Graphics2D g = step.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				if (result == image){
+					// the transparent parts become white like the paper
+					g.setColor(Color.WHITE);
+					g.fillRect(0, 0, w, h);
+				}
+				g.drawImage(result, 0, 0, w, h, null);
+			} finally {
+				g.dispose();
+			}
+			result = step;
+		} while (w != width || h != height);
+		return result;
+	}
+
+	/** Wait until the memory budget allows to decode an image
+	 *  When its header can't be read, the largest image seen so far is reserved
+	 *  (the whole budget before the first one, so it is decoded alone)
+	 *
+	 * @param data the encoded image (its size is read from its header)
+	 * @return the bytes reserved (to give to releaseMemory)
+	 */
+	public long reserveMemory(byte[] data) throws IOException {
+		long size = estimateDecodedSize(data);
+		if (size <= 0){
+			size = sLargestDecodedSize.get();
+			if (size <= 0){
+				size = getMemoryBudget().getBudget();
+			}
+		}
+		try {
+			return getMemoryBudget().acquire(size);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for memory");
+		}
+	}
+
+	/** Give back the memory reserved by reserveMemory
+	 *
+	 * @param reserved the bytes reserved
+	 */
+	public void releaseMemory(long reserved){
+		getMemoryBudget().release(reserved);
+	}
+
+	/** @return the memory budget shared by all the compressions */
+	public static synchronized MemoryBudget getMemoryBudget(){
+		if (sMemoryBudget == null){
+			long budget = iMemoryBudget;
+			if (budget <= 0){
+				budget = (long) (Runtime.getRuntime().maxMemory() * 0.6);
+			}
+			sMemoryBudget = new MemoryBudget(budget);
+		}
+		return sMemoryBudget;
+	}
+
+	/** Estimate the memory of a decoded image from its header (without decoding it)
+	 *  - the pixels decoded (subsampled if the image is reduced)
+	 *  - the intermediate images of the downscale (cf downscale)
+	 *  - the gray copy of a colour page (cf toGrayIfNeutral)
+	 *
+	 * @param data the encoded image
+	 * @return the size in bytes (0 if the header couldn't be read)
+	 */
+	public static long estimateDecodedSize(byte[] data){
+		ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext()){
+			return 0;
+		}
+
+		ImageReader reader = readers.next();
+		try (iis){
+			reader.setInput(iis, false, iTargetDpi <= 0);
 
-		ImageWriter writer = (ImageWriter) writers.next();
+			// only the subsampled image is decoded
+			double scale = getScale(reader);
+			int subsampling = getSubsampling(scale);
+			long nbPixels = (long) ((reader.getWidth(0)  + subsampling - 1) / subsampling)
+			                     * ((reader.getHeight(0) + subsampling - 1) / subsampling);
+
+			// ImageIO.read gives 3 or 4 bytes per pixel for colour images
+			int bytesPerPixel = 4;
+			ImageTypeSpecifier type = reader.getRawImageType(0);
+			if (type != null){
+				int bits = 0;
+				for (int size : type.getSampleModel().getSampleSize()){
+					bits += size;
+				}
+				bytesPerPixel = Math.max(1, (bits + 7) / 8);
+			}
+			long size = nbPixels * bytesPerPixel;
+
+			// each step of the downscale divides the size by 2 at most (gray or RGB on an int)
+			long finalPixels = nbPixels;
+			if (scale < 1){
+				finalPixels = (long) Math.ceil(reader.getWidth(0) * scale) * (long) Math.ceil(reader.getHeight(0) * scale);
+				int stepBytes = (bytesPerPixel == 1) ? 1 : 4;
+				for (long stepPixels = nbPixels / 4; stepPixels > finalPixels; stepPixels /= 4){
+					size += stepPixels * stepBytes;
+				}
+				size += finalPixels * stepBytes;
+			}
+			if (bytesPerPixel > 1 && iGrayTolerance >= 0){
+				size += finalPixels;
+			}
+
+			sLargestDecodedSize.accumulateAndGet(size, Math::max);
+			return size;
+		} catch (IOException|RuntimeException e){
+			return 0;
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/** Encode a page with the quality or the size budget asked
+	 *
+	 * @param image        the decoded image
+	 * @param originalSize size of the original image (to share the budget of the volume)
+	 * @param os           stream where to write the JPEG (not closed)
+	 */
+	public void encodePage(BufferedImage image, long originalSize, OutputStream os) throws IOException {
+		// a black and white page only needs one channel
+		image = toGrayIfNeutral(image);
+
+		long budget = getPageBudget(originalSize);
+		if (budget > 0){
+			os.write(encodeToSize(image, budget));
+		} else {
+			encodeJpg(image, os);
+		}
+	}
+
+	/** Convert an image to TYPE_BYTE_GRAY if all its pixels are (nearly) gray
+	 *  - a grid of about iGraySamples pixels is checked first: most colour pages stop there
+	 *  - the grid can't prove that a page is gray (a small coloured part may be between
+	 *    its points), so all the pixels are then checked while they are converted
+	 *
+	 * @param image the decoded image
+	 * @return the gray image or the same image if it has colours (or is already gray)
+	 */
+	public static BufferedImage toGrayIfNeutral(BufferedImage image){
+		if (image == null || iGrayTolerance < 0 || image.getColorModel().getNumColorComponents() == 1){
+			return image;
+		}
+
+		int width  = image.getWidth();
+		int height = image.getHeight();
+		int step   = (int) Math.max(1, Math.sqrt((double) width * height / iGraySamples));
+		for (int y = step / 2; y < height; y += step){
+			for (int x = step / 2; x < width; x += step){
+				if (!isNeutral(image.getRGB(x, y))){
+					return image;
+				}
+			}
+		}
+
+		BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] grayPixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+		int[] row = new int[width];
+		for (int y = 0; y < height; ++y){
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int offset = y * width;
+			for (int x = 0; x < width; ++x){
+				int rgb = row[x];
+				if (!isNeutral(rgb)){
+					debug("colour pixel at "+x+","+y);
+					return image;
+				}
+				// luminance (ITU-R BT.601, as Java2D does)
+				int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+				grayPixels[offset + x] = (byte) ((r * 77 + g * 150 + b * 29 + 128) >> 8);
+			}
+		}
+		return gray;
+	}
+
+	/** @return if the channels of a pixel differ by at most iGrayTolerance */
+	private static boolean isNeutral(int rgb){
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return Math.abs(r - g) <= iGrayTolerance && Math.abs(g - b) <= iGrayTolerance && Math.abs(r - b) <= iGrayTolerance;
+	}
+
+	/** Size budget of a page (-s for each page, or -S shared by the pages of the volume
+	 *  in proportion of their original size)
+	 *
+	 * @param originalSize size of the original image
+	 * @return the budget in bytes (0 if the quality is fixed)
+	 */
+	public long getPageBudget(long originalSize){
+		if (iTargetPageSize > 0){
+			return iTargetPageSize;
+		}
+		if (iTargetVolumeSize > 0 && iTotalImageSize > 0){
+			return Math.max(1, iTargetVolumeSize * originalSize / iTotalImageSize);
+		}
+		return 0;
+	}
+
+	/** Encode an image with the highest quality that fits in a size budget
+	 *  Each round encodes iNbQualityProbes qualities in parallel (from the same decoded image)
+	 *  and narrows the interval around the budget, until it is smaller than iQualityPrecision.
+	 *  When the pages are already compressed in parallel, each round encodes a single quality
+	 *  in the calling thread (the cores are busy, more probes would only oversubscribe them).
+	 *
+	 * @param image  the decoded image
+	 * @param budget maximum size in bytes
+	 * @return the JPEG (at iMinQuality if even this quality doesn't fit)
+	 */
+	public byte[] encodeToSize(BufferedImage image, long budget) throws IOException {
+		float low  = iMinQuality; // highest quality known to fit (or the minimum)
+		float high = 1f;          // lowest quality known not to fit
+		byte[] best = null;
+
+		int nbProbes = isPageParallel() ? 1 : Math.max(1, iNbQualityProbes);
+		while (high - low > iQualityPrecision){
+			List<Callable<byte[]>> probes = new ArrayList<>(nbProbes);
+			float[] qualities = new float[nbProbes];
+			for (int i = 0; i < nbProbes; ++i){
+				float quality = low + (high - low) * (i + 1) / (nbProbes + 1);
+				qualities[i] = quality;
+				probes.add(() -> {
+					ByteArrayOutputStream os = new ByteArrayOutputStream();
+					encodeJpg(image, quality, os);
+					return os.toByteArray();
+				});
+			}
+
+			// the size grows with the quality: keep the last probe under the budget
+			List<Future<byte[]>> results;
+			if (nbProbes == 1){
+				results = List.of(CompletableFuture.completedFuture(encodeProbe(probes.get(0))));
+			} else {
+				try {
+					results = getProbeExecutor(nbProbes).invokeAll(probes);
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted during the quality search");
+				}
+			}
+			int fit = -1;
+			for (int i = 0; i < nbProbes; ++i){
+				byte[] result = getProbe(results.get(i));
+				if (result.length > budget){
+					break;
+				}
+				best = result;
+				fit  = i;
+			}
+			debug("quality probes "+Arrays.toString(qualities)+": "+(fit+1)+" under "+budget+" bytes");
+
+			if (fit >= 0){
+				low = qualities[fit];
+			}
+			if (fit + 1 < nbProbes){
+				high = qualities[fit + 1];
+			}
+		}
+
+		if (best == null){
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			encodeJpg(image, iMinQuality, os);
+			best = os.toByteArray();
+		}
+		return best;
+	}
+
+	/** @return if several pages are compressed at the same time (pipeline encoders, -t or shared executor) */
+	private boolean isPageParallel(){
+		if (iIsPipeline){
+			return CompressPipeline.iNbEncoders > 1;
+		}
+		return (iExecutor != null ? getParallelism(iExecutor) : iNbThreads) > 1;
+	}
+
+	/** Give the threads encoding the quality probes
+	 *
+	 * @param nbProbes number of probes of a round
+	 * @return the executor (daemon threads, shared by the volumes compressed one at a time)
+	 */
+	private static synchronized ExecutorService getProbeExecutor(int nbProbes){
+		if (sProbeExecutor == null){
+			sProbeExecutor = Executors.newFixedThreadPool(nbProbes, r -> {
+				Thread thread = new Thread(r, "CompressCbr-probe");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return sProbeExecutor;
+	}
+
+	/** @return the JPEG of a quality probe encoded in the calling thread */
+	private static byte[] encodeProbe(Callable<byte[]> probe) throws IOException {
+		try {
+			return probe.call();
+		} catch (IOException|RuntimeException e){
+			throw e;
+		} catch (Exception e){
+			throw new IOException("Quality probe failed", e);
+		}
+	}
+
+	/** @return the result of a quality probe */
+	private static byte[] getProbe(Future<byte[]> probe) throws IOException {
+		try {
+			return probe.get();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during the quality search");
+		} catch (ExecutionException e){
+			if (e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Quality probe failed", e.getCause());
+		}
+	}
+
+	/** Encode an image in JPEG at iJpgCompressionFactor with the writer of the current thread
+	 *
+	 * @param image the decoded image
+	 * @param os    stream where to write the JPEG (not closed)
+	 */
+	public void encodeJpg(BufferedImage image, OutputStream os) throws IOException {
+		encodeJpg(image, iJpgCompressionFactor, os);
+	}
+
+	/** Encode an image in JPEG with the writer of the current thread
+	 *
+	 * @param image   the decoded image
+	 * @param quality quality of the compression (0 to 1)
+	 * @param os      stream where to write the JPEG (not closed)
+	 */
+	public void encodeJpg(BufferedImage image, float quality, OutputStream os) throws IOException {
+		ImageWriter writer = sJpgWriter.get();
 		ImageOutputStream ios = ImageIO.createImageOutputStream(os);
 		writer.setOutput(ios);
 
@@ -242,26 +1511,61 @@ public class CompressCbr {
 		// http://stackoverflow.com/questions/24538455/compression-of-png-using-jai-java-advanced-imaging
 		if (param.canWriteCompressed()) {
 			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-			param.setCompressionQuality(iJpgCompressionFactor);
+			param.setCompressionQuality(quality);
 		}
 
+		try {
+			// appends a complete image stream containing a single image and
+		    //associated stream and image metadata and thumbnails to the output
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			// the writer is kept for the next image of the thread
+			writer.reset();
+			ios.close();
+		}
+	}
 
-		// appends a complete image stream containing a single image and
-	    //associated stream and image metadata and thumbnails to the output
-		writer.write(null, new IIOImage(image, null, null), param);
+	/** @return a new JPEG writer */
+	private static ImageWriter newJpgWriter(){
+		// get all image writers for JPG format
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
 
-		// close all streams
-		is.close();
-		os.close();
-		ios.close();
-		writer.dispose();
+		if (!writers.hasNext())
+			throw new IllegalStateException("No writers found");
 
+		return writers.next();
 	}
 
 	public int getNumberOfCompressionFailure(){
-		return iImagesNotCompressed.size();
+		return (iImagesNotCompressed == null) ? 0 : iImagesNotCompressed.size();
 	}
 
+	/** @return the number of images of the folder or archive */
+	public int getNumberOfImages(){ return iNbImages; }
+
+	/** @return the number of images kept as they are (not worth re-encoding) */
+	public int getNumberOfKeptImages(){ return iNbKept.get(); }
+
+	/** @return the total size of the original images */
+	public long getTotalImageSize(){ return iTotalImageSize; }
+
+	/** @return the destination folder or archive */
+	public String getDestination(){ return iFolderDest; }
+
+	/** Use measures shared with other volumes (cf CompressLibrary)
+	 *
+	 * @param aStats where to add the measures of the pages
+	 */
+	public void setStats(CompressStats aStats){
+		iStats = aStats;
+	}
+
+	/** @return the measures of the compression */
+	public CompressStats getStats(){ return iStats; }
+
+	/** @return if the input is an archive (its destination is an archive too) */
+	public boolean isArchive(){ return iZipFile != null; }
+
 	public static void exit(int value, String reason){
 		System.err.println("Exit with reason: "+reason);
 		System.exit(value);
@@ -279,13 +1583,72 @@ public class CompressCbr {
 
 
 
+	/** Parse the integer value of an option
+	 *
+	 * @param args  arguments of the command line
+	 * @param index index of the value
+	 * @return the value (exit if it's not an integer)
+	 */
+	private static int parseIntArg(String[] args, int index){
+		if (index >= args.length) {
+			exit(1, "Missing value for the option "+args[index-1]);
+		}
+		try {
+			return Integer.parseInt(args[index]);
+		} catch (NumberFormatException e){
+			exit(1, "The option "+args[index-1]+" expects an integer: "+args[index]);
+			return 0;
+		}
+	}
+
+	/** Parse the options of the command line (they set the static settings)
+	 *
+	 * @param args arguments of the command line
+	 * @return the index of the first argument that isn't an option
+	 */
+	public static int parseOptions(String[] args){
+		int argIdx = 0;
+		while (argIdx < args.length - 1 && args[argIdx].startsWith("-")) {
+			String option = args[argIdx++];
+			if (option.equals("-p")) {
+				iIsPipeline = true;
+			} else if (option.equals("-t")) {
+				iNbThreads = parseIntArg(args, argIdx++);
+			} else if (option.equals("-w")) {
+				iMaxWidth = parseIntArg(args, argIdx++);
+			} else if (option.equals("-h")) {
+				iMaxHeight = parseIntArg(args, argIdx++);
+			} else if (option.equals("-dpi")) {
+				iTargetDpi = parseIntArg(args, argIdx++);
+			} else if (option.equals("-s")) {
+				iTargetPageSize = parseIntArg(args, argIdx++) * 1024L;
+			} else if (option.equals("-S")) {
+				iTargetVolumeSize = parseIntArg(args, argIdx++) * 1024L * 1024L;
+			} else if (option.equals("-q")) {
+				iNbQualityProbes = parseIntArg(args, argIdx++);
+			} else if (option.equals("-k")) {
+				iMinSavings = parseIntArg(args, argIdx++) / 100f;
+			} else if (option.equals("-g")) {
+				iGrayTolerance = parseIntArg(args, argIdx++);
+			} else if (option.equals("-P")) {
+				iIsProgress = true;
+			} else if (option.equals("-m")) {
+				iMemoryBudget = parseIntArg(args, argIdx++) * 1024L * 1024L;
+			} else {
+				exit(1, "Unknown option: "+option);
+			}
+		}
+		return argIdx;
+	}
+
 	public static void main(String[] args){
 		debug("Number of Args: "+args.length );
-		if (args.length != 1) {
-			exit(1, "Please enter the folder name where the images are");
+		int argIdx = parseOptions(args);
+		if (args.length != argIdx+1) {
+			exit(1, "Please enter the folder name where the images are or a cbz (options: -t nbThreads, -p, -m memoryMB, -w maxWidth, -h maxHeight, -dpi dpi, -s pageKB, -S volumeMB, -q nbQualityProbes, -k minSavingsPercent, -g grayTolerance, -P)");
 		}
 
-		CompressCbr cbr = new CompressCbr(args[0]);
+		CompressCbr cbr = new CompressCbr(args[argIdx]);
 		if (!cbr.checkFolder()){
 			exit(1, "cbr.checkFolder");
 		}
@@ -294,11 +1657,24 @@ public class CompressCbr {
 			cbr.printFileList();
 		}
 
+		if (iIsProgress){
+			cbr.getStats().startProgress();
+		}
 		int nbCompressed = cbr.doCompression();
+		cbr.getStats().stopProgress();
+
 		println("\n\nNumber of compressed images: "+ nbCompressed);
 		int nbFailed = cbr.getNumberOfCompressionFailure();
 		if (nbFailed > 0){
 			println("Number of images that were copied (compression failed): "+ nbFailed);
 		}
+
+		println("");
+		cbr.getStats().print(System.out);
+		try {
+			cbr.getStats().writeSummary(Paths.get(cbr.getDestination()+sStatsExtension));
+		} catch (IOException e){
+			println("Error writing the statistics: "+e);
+		}
 	}
 }
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * CompressLibrary compresses all the volumes of a library with CompressCbr.
+ * Syntax: java CompressLibrary [CompressCbr options] [-v nbVolumes] 'library folder'
+ *
+ * - the library is walked recursively: a volume is a folder containing images
+ *   or an archive (cbz, zip, cbr that is a zip)
+ * - the output mirrors the library in compress_'library' (cf CompressCbr)
+ * - the pages of all the volumes go to a single work-stealing pool (ForkJoinPool of
+ *   -t threads): nbVolumes volumes (2 by default) are processed at the same time
+ *   so the pages of the next one keep the cores busy while the last pages of a big one finish
+ * - the volumes already done are resumed (cf CompressManifest) or skipped (archives)
+ * - a summary of each volume is displayed when it ends, the summary of the whole library
+ *   is also written in compress_summary.txt in the output folder
+ *   (and the measures of the stages in compress.stats.properties, cf CompressStats)
+ */
+public class CompressLibrary {
+
+	/** Number of volumes processed at the same time */
+	public static int iNbVolumes = 2;
+
+	/** Name of the summary file in the output folder */
+	public static final String summaryFileName = "compress_summary.txt";
+
+
+	/** Summary of a volume */
+	public static class VolumeSummary {
+		public String  name;
+		public String  status;       // compressed, skipped, failed
+		public int     nbImages;
+		public int     nbCompressed;
+		public int     nbKept;
+		public int     nbFailed;
+		public long    inputBytes;
+		public long    outputBytes;
+		public long    durationMs;
+
+		@Override
+		public String toString(){
+			return name+": "+status+", "+nbImages+" images ("+nbCompressed+" compressed, "
+					+nbKept+" kept, "+nbFailed+" failed), "
+					+inputBytes / 1024+" KB -> "+outputBytes / 1024+" KB"
+					+(inputBytes > 0 ? " ("+(100 * outputBytes / inputBytes)+"%)" : "")
+					+" in "+durationMs+" ms";
+		}
+	}
+
+
+	/** Measures of the pages of all the volumes */
+	private final CompressStats iStats = new CompressStats();
+
+	/** Folder of the library */
+	private final Path iLibrary;
+
+	/** Volumes found in the library */
+	private final List<Path> iVolumes;
+
+	/** Pattern of the images (cf CompressCbr.sImageExtensions) */
+	private final Pattern iImagePattern;
+
+	/** Pattern of the archives (cf CompressCbr.sArchiveExtensions) */
+	private final Pattern iArchivePattern;
+
+
+	/** Contructor
+	 *
+	 * @param aLibrary folder of the library
+	 */
+	public CompressLibrary(String aLibrary){
+		iLibrary        = Paths.get(aLibrary);
+		iVolumes        = new ArrayList<>();
+		iImagePattern   = Pattern.compile(CompressCbr.sImageExtensions, Pattern.CASE_INSENSITIVE);
+		iArchivePattern = Pattern.compile(CompressCbr.sArchiveExtensions, Pattern.CASE_INSENSITIVE);
+	}
+
+
+	/** Walk the library to find its volumes (folders containing images and archives)
+	 *
+	 * @return the number of volumes
+	 */
+	public int findVolumes() throws IOException {
+		iVolumes.clear();
+		try (Stream<Path> paths = Files.walk(iLibrary)){
+			paths.filter(path -> !isOutput(path))
+			     .filter(path -> Files.isDirectory(path) ? containsImages(path)
+			                     : iArchivePattern.matcher(path.toString()).matches())
+			     .sorted()
+			     .forEach(iVolumes::add);
+		}
+		return iVolumes.size();
+	}
+
+	/** @return if the path is in an output of CompressCbr (compress_...) */
+	private boolean isOutput(Path path){
+		for (Path name : iLibrary.relativize(path)){
+			if (name.toString().startsWith("compress_")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return if a folder directly contains images */
+	private boolean containsImages(Path folder){
+		try (Stream<Path> files = Files.list(folder)){
+			return files.anyMatch(file -> iImagePattern.matcher(file.toString()).matches());
+		} catch (IOException e){
+			CompressCbr.println("Can't list "+folder+": "+e);
+			return false;
+		}
+	}
+
+
+	/** Compress all the volumes
+	 *
+	 * @return the summary of each volume (in the order of the library)
+	 */
+	public List<VolumeSummary> compressAll() throws InterruptedException {
+		ForkJoinPool pages = new ForkJoinPool(Math.max(1, CompressCbr.iNbThreads));
+		ExecutorService volumes = Executors.newFixedThreadPool(Math.max(1, iNbVolumes));
+		try {
+			List<Future<VolumeSummary>> results = new ArrayList<>(iVolumes.size());
+			for (Path volume : iVolumes){
+				results.add(volumes.submit(() -> compressVolume(volume, pages)));
+			}
+
+			List<VolumeSummary> summaries = new ArrayList<>(iVolumes.size());
+			for (int i = 0; i < results.size(); ++i){
+				try {
+					summaries.add(results.get(i).get());
+				} catch (ExecutionException e){
+					VolumeSummary summary = new VolumeSummary();
+					summary.name   = iVolumes.get(i).toString();
+					summary.status = "failed ("+e.getCause()+")";
+					summaries.add(summary);
+				}
+			}
+			return summaries;
+		} finally {
+			volumes.shutdown();
+			pages.shutdown();
+		}
+	}
+
+
+	/** Compress a volume on the pool shared by the library
+	 *
+	 * @param volume folder or archive
+	 * @param pages  pool compressing the pages
+	 * @return its summary
+	 */
+	private VolumeSummary compressVolume(Path volume, ExecutorService pages){
+		long start = System.nanoTime();
+		VolumeSummary summary = new VolumeSummary();
+		summary.name = volume.toString();
+
+		CompressCbr cbr = new CompressCbr(volume.toString());
+		Path dest = Paths.get(cbr.getDestination());
+		if (Files.isRegularFile(dest) || (Files.isDirectory(dest) && !CompressManifest.exists(dest) && CompressCbr.containsFiles(dest))){
+			// CompressCbr would stop the whole program
+			summary.status = "skipped (already done: "+dest+")";
+		} else if (!cbr.checkFolder()){
+			summary.status = "failed (can't read it)";
+		} else {
+			cbr.setExecutor(pages);
+			cbr.setStats(iStats);
+			summary.nbCompressed = cbr.doCompression();
+			summary.nbImages     = cbr.getNumberOfImages();
+			summary.nbKept       = cbr.getNumberOfKeptImages();
+			summary.nbFailed     = cbr.getNumberOfCompressionFailure();
+			summary.inputBytes   = cbr.getTotalImageSize();
+			summary.outputBytes  = getSize(dest);
+			summary.status       = "compressed";
+		}
+		summary.durationMs = (System.nanoTime() - start) / 1000000;
+
+		CompressCbr.println("Volume "+summary);
+		return summary;
+	}
+
+	/** @return the size of a file or of the pages of a folder (without the manifest nor the other volumes) */
+	private static long getSize(Path path){
+		if (Files.isRegularFile(path)){
+			return path.toFile().length();
+		}
+		try (Stream<Path> files = Files.list(path)){
+			return files.filter(Files::isRegularFile)
+			            .filter(file -> !file.getFileName().toString().equals(CompressManifest.fileName))
+			            .filter(file -> !file.toString().matches("(?i)"+CompressCbr.sArchiveExtensions)) // other volumes
+			            .mapToLong(file -> file.toFile().length())
+			            .sum();
+		} catch (IOException e){
+			return 0;
+		}
+	}
+
+
+	/** @return the measures of the pages of all the volumes */
+	public CompressStats getStats(){ return iStats; }
+
+	/** Display the summary of the library
+	 *
+	 * @param summaries    summary of each volume
+	 * @param durationMs   duration of the whole compression
+	 * @param outputStream stream where to print it
+	 */
+	public static void printSummary(List<VolumeSummary> summaries, long durationMs, PrintStream outputStream){
+		int nbImages = 0, nbCompressed = 0, nbKept = 0, nbFailed = 0, nbSkipped = 0;
+		long inputBytes = 0, outputBytes = 0;
+		for (VolumeSummary summary : summaries){
+			outputStream.println(summary);
+			nbImages     += summary.nbImages;
+			nbCompressed += summary.nbCompressed;
+			nbKept       += summary.nbKept;
+			nbFailed     += summary.nbFailed;
+			inputBytes   += summary.inputBytes;
+			outputBytes  += summary.outputBytes;
+			if (!"compressed".equals(summary.status)){
+				++nbSkipped;
+			}
+		}
+		outputStream.println();
+		outputStream.println("Volumes: "+summaries.size()+" ("+nbSkipped+" skipped or failed)");
+		outputStream.println("Images: "+nbImages+" ("+nbCompressed+" compressed, "+nbKept+" kept, "+nbFailed+" failed)");
+		outputStream.println("Size: "+inputBytes / (1024 * 1024)+" MB -> "+outputBytes / (1024 * 1024)+" MB"
+				+(inputBytes > 0 ? " ("+(100 * outputBytes / inputBytes)+"%)" : ""));
+		outputStream.println("Duration: "+durationMs / 1000+" s"
+				+(durationMs > 0 ? " ("+(nbImages * 1000L / durationMs)+" images/s)" : ""));
+	}
+
+
+	public static void main(String[] args){
+		// the options of CompressCbr, -v is handled first
+		List<String> options = new ArrayList<>(List.of(args));
+		int idx = options.indexOf("-v");
+		if (idx >= 0 && idx + 1 < options.size() - 1){
+			try {
+				iNbVolumes = Integer.parseInt(options.get(idx + 1));
+			} catch (NumberFormatException e){
+				CompressCbr.exit(1, "The option -v expects an integer: "+options.get(idx + 1));
+			}
+			options.subList(idx, idx + 2).clear();
+		}
+		String[] cbrArgs = options.toArray(new String[0]);
+		int argIdx = CompressCbr.parseOptions(cbrArgs);
+		if (cbrArgs.length != argIdx + 1){
+			CompressCbr.exit(1, "Please enter the folder of the library (options: those of CompressCbr but -p, and -v nbVolumes)");
+		}
+		// the pages of the volumes share the pool, not a pipeline each
+		CompressCbr.iIsPipeline = false;
+		CompressCbr.iIsVerbose  = false;
+
+		long start = System.currentTimeMillis();
+		CompressLibrary library = new CompressLibrary(cbrArgs[argIdx]);
+		try {
+			CompressCbr.println("There are "+library.findVolumes()+" volumes in "+cbrArgs[argIdx]);
+			if (CompressCbr.iIsProgress){
+				library.getStats().startProgress();
+			}
+			List<VolumeSummary> summaries = library.compressAll();
+			library.getStats().stopProgress();
+			long durationMs = System.currentTimeMillis() - start;
+
+			CompressCbr.println("\n\nSummary:");
+			printSummary(summaries, durationMs, System.out);
+			CompressCbr.println("");
+			library.getStats().print(System.out);
+
+			Path summaryFile = Paths.get("compress_"+cbrArgs[argIdx], summaryFileName);
+			Files.createDirectories(summaryFile.getParent());
+			try (PrintStream os = new PrintStream(Files.newOutputStream(summaryFile), false, "UTF-8")){
+				printSummary(summaries, durationMs, os);
+			}
+			library.getStats().writeSummary(Paths.get("compress_"+cbrArgs[argIdx], "compress"+CompressCbr.sStatsExtension));
+			CompressCbr.println("\nSummary written in "+summaryFile);
+		} catch (IOException e){
+			CompressCbr.exit(1, "Error reading the library: "+e);
+		} catch (InterruptedException e){
+			CompressCbr.exit(1, "Interrupted");
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * CompressManifest remembers the pages already done in a destination folder
+ * so a compression that crashed, or that is run again after some pages were added,
+ * only processes the new or modified images.
+ *
+ * The manifest (file .compress_manifest in the destination folder) contains:
+ * - the settings used for the output (quality, size...): if they change everything is redone
+ * - for each source file: its size, its modification time, its CRC32C and what was done
+ *   (compressed or copied)
+ *
+ * A line is appended (and flushed) as soon as a page is written, so a crash loses
+ * at most the pages being compressed. When a page is there several times the last line wins.
+ *
+ * A page is considered done when its output exists and its source has the same size and
+ * either the same modification time or, if it was touched, the same CRC32C.
+ */
+public class CompressManifest {
+
+	/** Name of the manifest in the destination folder */
+	public static final String fileName = ".compress_manifest";
+
+	public static final String statusCompressed = "compressed";
+	public static final String statusCopied     = "copied";
+
+	protected static final String headerLine   = "# CompressCbr manifest";
+	protected static final String settingsKey  = "settings";
+
+
+	/** What is known about a source file */
+	private static class Entry {
+		long   size;
+		long   mtime;
+		int    hash;
+		String status;
+	}
+
+
+	/** The manifest file */
+	private final Path iPath;
+
+	/** Settings of the output */
+	private final String iSettings;
+
+	/** Source files already done indexed by their name */
+	private final Map<String, Entry> iEntries;
+
+	/** Where the new lines are appended (null until open is called) */
+	private BufferedWriter iWriter;
+
+
+	/** Contructor
+	 *
+	 * @param aFolder   destination folder
+	 * @param aSettings settings of the output (cf CompressCbr.getSettings)
+	 */
+	public CompressManifest(Path aFolder, String aSettings){
+		iPath     = aFolder.resolve(fileName);
+		iSettings = aSettings;
+		iEntries  = new HashMap<>();
+	}
+
+
+	/** @param aFolder destination folder
+	 *  @return if the folder contains a manifest */
+	public static boolean exists(Path aFolder){
+		return Files.isRegularFile(aFolder.resolve(fileName));
+	}
+
+
+	/** Read the manifest of a previous run
+	 *
+	 * @return false if it was made with other settings (its entries are then ignored)
+	 */
+	public boolean load() throws IOException {
+		iEntries.clear();
+		boolean isSameSettings = false;
+		try (BufferedReader reader = Files.newBufferedReader(iPath, StandardCharsets.UTF_8)){
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (line.isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				String[] fields = line.split("\t", 5);
+				if (fields[0].equals(settingsKey)){
+					isSameSettings = fields.length == 2 && fields[1].equals(iSettings);
+					iEntries.clear();
+				} else if (fields.length == 5 && isSameSettings){
+					try {
+						Entry entry  = new Entry();
+						entry.size   = Long.parseLong(fields[0]);
+						entry.mtime  = Long.parseLong(fields[1]);
+						entry.hash   = Integer.parseUnsignedInt(fields[2], 16);
+						entry.status = fields[3];
+						iEntries.put(fields[4], entry);
+					} catch (NumberFormatException e){
+						CompressCbr.debug("Invalid line in the manifest: "+line);
+					}
+				}
+			}
+		}
+		return isSameSettings;
+	}
+
+
+	/** Start appending the pages done
+	 *
+	 * @param isResume true to keep the entries loaded (same settings),
+	 *                 false to start a new manifest
+	 */
+	public synchronized void open(boolean isResume) throws IOException {
+		if (isResume){
+			iWriter = Files.newBufferedWriter(iPath, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			return;
+		}
+
+		iEntries.clear();
+		iWriter = Files.newBufferedWriter(iPath, StandardCharsets.UTF_8);
+		iWriter.write(headerLine);
+		iWriter.newLine();
+		iWriter.write(settingsKey+"\t"+iSettings);
+		iWriter.newLine();
+		iWriter.flush();
+	}
+
+
+	/** Check if a page has already been done
+	 *
+	 * @param source the source image
+	 * @param dest   its output in the destination folder
+	 * @return true if it can be skipped
+	 */
+	public synchronized boolean isDone(Path source, Path dest) throws IOException {
+		Entry entry = iEntries.get(getName(source));
+		if (entry == null || !Files.exists(dest) || Files.size(source) != entry.size){
+			return false;
+		}
+		if (Files.getLastModifiedTime(source).toMillis() == entry.mtime){
+			return true;
+		}
+		// touched but maybe not modified
+		return hash(source) == entry.hash;
+	}
+
+
+	/** @return the status of a page done (statusCompressed, statusCopied) or null */
+	public synchronized String getStatus(Path source){
+		Entry entry = iEntries.get(getName(source));
+		return (entry == null) ? null : entry.status;
+	}
+
+
+	/** Record a page that has been written
+	 *
+	 * @param source the source image
+	 * @param data   its content if it has already been read (null to read it)
+	 * @param status statusCompressed or statusCopied
+	 */
+	public void record(Path source, byte[] data, String status) throws IOException {
+		Entry entry  = new Entry();
+		entry.mtime  = Files.getLastModifiedTime(source).toMillis();
+		if (data == null){
+			entry.size = Files.size(source);
+			entry.hash = hash(source);
+		} else {
+			entry.size = data.length;
+			entry.hash = hash(data);
+		}
+		entry.status = status;
+
+		synchronized (this) {
+			iEntries.put(getName(source), entry);
+			if (iWriter != null){
+				writeLine(getName(source), entry);
+				iWriter.flush();
+			}
+		}
+	}
+
+
+	/** Close the manifest */
+	public synchronized void close(){
+		if (iWriter != null){
+			try {
+				iWriter.close();
+			} catch (IOException e){
+				CompressCbr.println("Error closing the manifest: "+e);
+			}
+			iWriter = null;
+		}
+	}
+
+
+	private void writeLine(String name, Entry entry) throws IOException {
+		iWriter.write(entry.size+"\t"+entry.mtime+"\t"+Integer.toHexString(entry.hash)+"\t"+entry.status+"\t"+name);
+		iWriter.newLine();
+	}
+
+	private static String getName(Path source){
+		return source.getFileName().toString();
+	}
+
+
+	/** @return the CRC32C of a file */
+	public static int hash(Path path) throws IOException {
+		CRC32C crc = new CRC32C();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream is = Files.newInputStream(path)){
+			int nbRead;
+			while ((nbRead = is.read(buffer)) > 0){
+				crc.update(buffer, 0, nbRead);
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	/** @return the CRC32C of some bytes */
+	public static int hash(byte[] data){
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,316 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CompressPipeline compresses the pages of a volume with separate stages
+ * so the disk and the cores are busy at the same time:
+ *
+ *   read (I/O prefetch) -> decode (ImageIO.read) -> encode (JPEG) -> write (in page order)
+ *
+ * - each stage has its own threads (iNbReaders, iNbDecoders, iNbEncoders, one writer)
+ * - the stages are linked by bounded queues, so a slow stage holds the previous ones back
+ * - at most iMaxInFlight pages are in the pipeline (the writer waits for them in order)
+ * - each encoder thread reuses its own ImageWriter (cf CompressCbr.encodePage)
+ * - an image is only decoded when it fits in the memory budget (cf CompressCbr.reserveMemory)
+ * - the time of each stage is measured for each page (cf CompressStats)
+ *
+ * The pages that are not images, or that fail, go straight to the writer with their
+ * original bytes so it can copy them. So do the images not worth compressing (cf CompressCbr.getSkipReason)
+ * that are kept as they are: they are not counted as compressed.
+ */
+public class CompressPipeline {
+
+	/** Number of threads reading the files */
+	public static int iNbReaders       = 2;
+
+	/** Number of threads decoding the images */
+	public static int iNbDecoders      = Runtime.getRuntime().availableProcessors();
+
+	/** Number of threads encoding the images */
+	public static int iNbEncoders      = Runtime.getRuntime().availableProcessors();
+
+	/** Size of the queue of files read waiting to be decoded */
+	public static int iReadQueueSize   = 16;
+
+	/** Size of the queue of decoded images (they are big!) waiting to be encoded */
+	public static int iDecodeQueueSize = 4;
+
+	/** Size of the queue of compressed images waiting to be written */
+	public static int iEncodeQueueSize = 16;
+
+	/** Maximum number of pages in the pipeline */
+	public static int iMaxInFlight     = 64;
+
+
+	/** Where the pages come from */
+	public interface Source {
+		/** @return the number of pages */
+		int size();
+
+		/** @return the name of a page */
+		String getName(int index);
+
+		/** @return if the page is an image to compress (otherwise it is copied) */
+		boolean isImage(int index);
+
+		/** @return a stream to read the page */
+		InputStream open(int index) throws IOException;
+	}
+
+	/** Where the pages go (called in the order of the pages, from the writer thread) */
+	public interface Sink {
+		/** Write a page
+		 *
+		 * @param index      index of the page
+		 * @param name       name of the page
+		 * @param compressed the compressed image (null if it is not an image, if it is kept or if it failed)
+		 * @param original   the original bytes (null if they couldn't be read)
+		 * @param isKept     true if the image is kept as it is (its original bytes go to the destination)
+		 * @param error      what made the compression fail (null if it succeeded or if it is not an image)
+		 */
+		void write(int index, String name, byte[] compressed, byte[] original, boolean isKept, Exception error) throws IOException;
+	}
+
+
+	/** A page going through the pipeline */
+	private static class Page {
+		final int      index;
+		final String   name;
+		byte[]         original;
+		BufferedImage  image;
+		byte[]         compressed;
+		Exception      error;
+		boolean        isImage;
+		boolean        isKept;   // not worth compressing, the original is kept
+		long           reserved; // memory reserved for the decoded image
+		final CompressStats.PageTimes times;
+
+		Page(int aIndex, String aName){
+			index = aIndex;
+			name  = aName;
+			times = new CompressStats.PageTimes(aName);
+		}
+	}
+
+	/** Marks the end of a queue */
+	private static final Page endOfQueue = new Page(-1, null);
+
+
+	/** The compressor (for the encoding settings) */
+	private final CompressCbr iCompressor;
+
+	private final BlockingQueue<Page> iReadQueue;
+	private final BlockingQueue<Page> iDecodeQueue;
+	private final BlockingQueue<Page> iEncodeQueue;
+
+	/** Limits the number of pages in the pipeline */
+	private final Semaphore iInFlight;
+
+
+	/** Contructor
+	 *
+	 * @param aCompressor the compressor whose settings are used to encode the pages
+	 */
+	public CompressPipeline(CompressCbr aCompressor){
+		iCompressor   = aCompressor;
+		iReadQueue    = new ArrayBlockingQueue<>(iReadQueueSize);
+		iDecodeQueue  = new ArrayBlockingQueue<>(iDecodeQueueSize);
+		iEncodeQueue  = new ArrayBlockingQueue<>(iEncodeQueueSize);
+		iInFlight     = new Semaphore(iMaxInFlight);
+	}
+
+
+	/** Compress all the pages of a source
+	 *
+	 * @param source where the pages come from
+	 * @param sink   where they go (in the order of the pages)
+	 * @return the number of images compressed
+	 */
+	public int run(Source source, Sink sink) throws InterruptedException {
+		AtomicInteger next         = new AtomicInteger();
+		AtomicInteger nbCompressed = new AtomicInteger();
+		IOException[] writeError   = new IOException[1];
+
+		Thread[] readers  = startThreads("read",   iNbReaders,  () -> readStage(source, next));
+		Thread[] decoders = startThreads("decode", iNbDecoders, this::decodeStage);
+		Thread[] encoders = startThreads("encode", iNbEncoders, this::encodeStage);
+		Thread[] writer   = startThreads("write",  1, () -> writeStage(sink, nbCompressed, writeError));
+
+		// each stage ends once the previous one has finished
+		joinAndClose(readers,  iReadQueue,   decoders.length);
+		joinAndClose(decoders, iDecodeQueue, encoders.length);
+		joinAndClose(encoders, iEncodeQueue, 1);
+		writer[0].join();
+
+		if (writeError[0] != null){
+			CompressCbr.println("Error writing the pages: "+writeError[0]);
+		}
+		return nbCompressed.get();
+	}
+
+
+	/** Read the pages (in order) */
+	private void readStage(Source source, AtomicInteger next){
+		while (acquire(iInFlight)){
+			// the permit is taken before the index so the next page to write always has one
+			int index = next.getAndIncrement();
+			if (index >= source.size()){
+				iInFlight.release();
+				return;
+			}
+			Page page = new Page(index, source.getName(index));
+			page.isImage = source.isImage(index);
+			long start = System.nanoTime();
+			try (InputStream is = source.open(index)){
+				page.original = is.readAllBytes();
+				page.times.readNanos  = System.nanoTime() - start;
+				page.times.inputBytes = page.original.length;
+			} catch (IOException e){
+				page.error = e;
+			}
+
+			// the pages that are not images don't need to be decoded
+			put((page.isImage && page.error == null) ? iReadQueue : iEncodeQueue, page);
+		}
+	}
+
+	/** Decode the images */
+	private void decodeStage(){
+		Page page;
+		while ((page = take(iReadQueue)) != endOfQueue){
+			String reason = iCompressor.getSkipReason(page.original);
+			if (reason != null){
+				// not worth decoding, the original goes straight to the writer
+				iCompressor.keepPage(page.name, reason);
+				page.isKept = true;
+				put(iEncodeQueue, page);
+				continue;
+			}
+			try {
+				// wait until the decoded image fits in the memory budget
+				page.reserved = iCompressor.reserveMemory(page.original);
+				long start = System.nanoTime();
+				page.image = iCompressor.decodeImage(page.original);
+				page.times.decodeNanos = System.nanoTime() - start;
+				if (page.image == null){
+					throw new IOException("No decoder for "+page.name);
+				}
+				put(iDecodeQueue, page);
+			} catch (IOException|RuntimeException e){
+				iCompressor.releaseMemory(page.reserved);
+				page.reserved = 0;
+				page.error = e;
+				put(iEncodeQueue, page);
+			}
+		}
+	}
+
+	/** Encode the images */
+	private void encodeStage(){
+		Page page;
+		while ((page = take(iDecodeQueue)) != endOfQueue){
+			try {
+				ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(32, page.original.length / 2));
+				long start = System.nanoTime();
+				iCompressor.encodePage(page.image, page.original.length, os);
+				page.compressed = os.toByteArray();
+				page.times.encodeNanos = System.nanoTime() - start;
+			} catch (IOException|RuntimeException e){
+				page.error = e;
+			}
+			page.image = null; // the biggest object, let's free it as soon as possible
+			iCompressor.releaseMemory(page.reserved);
+			page.reserved = 0;
+			put(iEncodeQueue, page);
+		}
+	}
+
+	/** Write the pages in their order */
+	private void writeStage(Sink sink, AtomicInteger nbCompressed, IOException[] writeError){
+		Map<Integer, Page> waiting = new HashMap<>();
+		int nextToWrite = 0;
+		Page page;
+		while ((page = take(iEncodeQueue)) != endOfQueue){
+			waiting.put(page.index, page);
+			while ((page = waiting.remove(nextToWrite)) != null){
+				++nextToWrite;
+				iInFlight.release();
+				if (page.compressed != null){
+					nbCompressed.incrementAndGet();
+				}
+				if (writeError[0] != null){
+					continue; // we keep consuming so the other stages can end
+				}
+				try {
+					long start = System.nanoTime();
+					sink.write(page.index, page.name, page.compressed, page.original, page.isKept, page.error);
+					if (page.isImage && (page.compressed != null || page.isKept)){
+						page.times.writeNanos  = System.nanoTime() - start;
+						page.times.outputBytes = page.isKept ? page.original.length : page.compressed.length;
+						iCompressor.getStats().add(page.times);
+					}
+				} catch (IOException e){
+					writeError[0] = e;
+				}
+			}
+		}
+	}
+
+
+	/** Start the threads of a stage */
+	private static Thread[] startThreads(String stage, int nbThreads, Runnable task){
+		Thread[] threads = new Thread[Math.max(1, nbThreads)];
+		for (int i = 0; i < threads.length; ++i){
+			threads[i] = new Thread(task, "CompressPipeline-"+stage+"-"+i);
+			threads[i].start();
+		}
+		return threads;
+	}
+
+	/** Wait for the threads of a stage and tell the next one that there is nothing more */
+	private static void joinAndClose(Thread[] threads, BlockingQueue<Page> queue, int nbConsumers) throws InterruptedException {
+		for (Thread thread : threads){
+			thread.join();
+		}
+		for (int i = 0; i < nbConsumers; ++i){
+			queue.put(endOfQueue);
+		}
+	}
+
+	private static Page take(BlockingQueue<Page> queue){
+		try {
+			return queue.take();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return endOfQueue;
+		}
+	}
+
+	private static void put(BlockingQueue<Page> queue, Page page){
+		try {
+			queue.put(page);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean acquire(Semaphore semaphore){
+		try {
+			semaphore.acquire();
+			return true;
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
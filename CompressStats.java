@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * CompressStats measures where the time of a compression goes:
+ * read, decode (ImageIO), encode (JPEG) and write, with the bytes in and out.
+ *
+ * - the threads only add their measures to LongAdders (no lock, no output in the hot loop)
+ * - each page is also a JFR event (compresscbr.Page) and the totals a compresscbr.Summary event,
+ *   they cost nothing when no recording is running:
+ *   java -XX:StartFlightRecording=filename=compress.jfr CompressCbr ...
+ * - a progress line can be refreshed every second by its own thread (cf startProgress)
+ * - the totals can be written in a properties file (cf writeSummary)
+ *
+ * The times of the stages are the sum over the threads, so they can be higher than the
+ * duration of the compression: it's their proportion that tells what the compression is bound by.
+ */
+public class CompressStats {
+
+	/** Measures of a page (filled by the threads that process it) */
+	public static class PageTimes {
+		public final String name;
+		public long readNanos;
+		public long decodeNanos;
+		public long encodeNanos;
+		public long writeNanos;
+		public long inputBytes;
+		public long outputBytes;
+
+		public PageTimes(String aName){
+			name = aName;
+		}
+	}
+
+
+	/** JFR event of a page */
+	@Name("compresscbr.Page")
+	@Label("Page compressed")
+	@Category("CompressCbr")
+	static class PageEvent extends Event {
+		@Label("Name") String name;
+		@Label("Read") @Timespan(Timespan.NANOSECONDS) long readTime;
+		@Label("Decode") @Timespan(Timespan.NANOSECONDS) long decodeTime;
+		@Label("Encode") @Timespan(Timespan.NANOSECONDS) long encodeTime;
+		@Label("Write") @Timespan(Timespan.NANOSECONDS) long writeTime;
+		@Label("Input") @DataAmount long inputBytes;
+		@Label("Output") @DataAmount long outputBytes;
+	}
+
+	/** JFR event of the totals of a compression */
+	@Name("compresscbr.Summary")
+	@Label("Compression summary")
+	@Category("CompressCbr")
+	static class SummaryEvent extends Event {
+		@Label("Pages") long nbPages;
+		@Label("Read") @Timespan(Timespan.NANOSECONDS) long readTime;
+		@Label("Decode") @Timespan(Timespan.NANOSECONDS) long decodeTime;
+		@Label("Encode") @Timespan(Timespan.NANOSECONDS) long encodeTime;
+		@Label("Write") @Timespan(Timespan.NANOSECONDS) long writeTime;
+		@Label("Input") @DataAmount long inputBytes;
+		@Label("Output") @DataAmount long outputBytes;
+		@Label("Pages per second") double pagesPerSecond;
+	}
+
+
+	private final LongAdder iNbPages     = new LongAdder();
+	private final LongAdder iReadNanos   = new LongAdder();
+	private final LongAdder iDecodeNanos = new LongAdder();
+	private final LongAdder iEncodeNanos = new LongAdder();
+	private final LongAdder iWriteNanos  = new LongAdder();
+	private final LongAdder iInputBytes  = new LongAdder();
+	private final LongAdder iOutputBytes = new LongAdder();
+
+	/** When the compression started */
+	private final long iStartNanos;
+
+	/** Number of pages expected (for the progress line) */
+	private volatile long iNbPagesExpected;
+
+	/** Thread refreshing the progress line (null if it isn't displayed) */
+	private ScheduledExecutorService iProgress;
+
+
+	/** Contructor (the compression starts now) */
+	public CompressStats(){
+		iStartNanos = System.nanoTime();
+	}
+
+
+	/** Add the measures of a page
+	 *
+	 * @param page the measures of the page
+	 */
+	public void add(PageTimes page){
+		iNbPages.increment();
+		iReadNanos.add(page.readNanos);
+		iDecodeNanos.add(page.decodeNanos);
+		iEncodeNanos.add(page.encodeNanos);
+		iWriteNanos.add(page.writeNanos);
+		iInputBytes.add(page.inputBytes);
+		iOutputBytes.add(page.outputBytes);
+
+		PageEvent event = new PageEvent();
+		if (event.shouldCommit()){
+			event.name        = page.name;
+			event.readTime    = page.readNanos;
+			event.decodeTime  = page.decodeNanos;
+			event.encodeTime  = page.encodeNanos;
+			event.writeTime   = page.writeNanos;
+			event.inputBytes  = page.inputBytes;
+			event.outputBytes = page.outputBytes;
+			event.commit();
+		}
+	}
+
+	/** Add a write time measured apart from the page (archives are written by a single thread) */
+	public void addWriteNanos(long nanos){
+		iWriteNanos.add(nanos);
+	}
+
+	/** Expect more pages (for the progress line) */
+	public void addExpectedPages(long nbPages){
+		iNbPagesExpected += nbPages;
+	}
+
+
+	/** Display a progress line on stderr every second */
+	public synchronized void startProgress(){
+		if (iProgress != null){
+			return;
+		}
+		iProgress = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "CompressStats-progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		iProgress.scheduleAtFixedRate(() -> System.err.print("\r"+getProgressLine()+"   "), 1, 1, TimeUnit.SECONDS);
+	}
+
+	/** Stop displaying the progress line */
+	public synchronized void stopProgress(){
+		if (iProgress != null){
+			iProgress.shutdownNow();
+			iProgress = null;
+			System.err.println("\r"+getProgressLine()+"   ");
+		}
+	}
+
+	/** @return the progress line (pages done, speed, ratio) */
+	public String getProgressLine(){
+		long nbPages = iNbPages.sum();
+		long input   = iInputBytes.sum();
+		return nbPages+(iNbPagesExpected > 0 ? "/"+iNbPagesExpected : "")+" pages, "
+				+Math.round(getPagesPerSecond() * 10) / 10.0+" pages/s"
+				+(input > 0 ? ", "+(100 * iOutputBytes.sum() / input)+"% of the size" : "");
+	}
+
+
+	/** @return the number of pages per second since the start */
+	public double getPagesPerSecond(){
+		long nanos = System.nanoTime() - iStartNanos;
+		return (nanos > 0) ? iNbPages.sum() * 1e9 / nanos : 0;
+	}
+
+	public long getNbPages()     { return iNbPages.sum(); }
+	public long getInputBytes()  { return iInputBytes.sum(); }
+	public long getOutputBytes() { return iOutputBytes.sum(); }
+
+
+	/** Display the totals
+	 *
+	 * @param outputStream Stream where to print them
+	 */
+	public void print(PrintStream outputStream){
+		long nbPages = Math.max(1, iNbPages.sum());
+		outputStream.println("Pages: "+iNbPages.sum()+" in "+(System.nanoTime() - iStartNanos) / 1000000+" ms ("
+				+Math.round(getPagesPerSecond() * 10) / 10.0+" pages/s)");
+		outputStream.println("Size: "+iInputBytes.sum()+" -> "+iOutputBytes.sum()+" bytes"
+				+(iInputBytes.sum() > 0 ? " ("+(100 * iOutputBytes.sum() / iInputBytes.sum())+"%)" : ""));
+		outputStream.println("Time per page: read "+iReadNanos.sum() / nbPages / 1000+" us, decode "
+				+iDecodeNanos.sum() / nbPages / 1000+" us, encode "+iEncodeNanos.sum() / nbPages / 1000
+				+" us, write "+iWriteNanos.sum() / nbPages / 1000+" us");
+	}
+
+
+	/** Write the totals in a properties file and commit the summary JFR event
+	 *
+	 * @param path file where to write them
+	 */
+	public void writeSummary(Path path) throws IOException {
+		long   wallNanos = System.nanoTime() - iStartNanos;
+		long   input     = iInputBytes.sum();
+		double ratio     = (input > 0) ? (double) iOutputBytes.sum() / input : 0;
+
+		try (PrintStream os = new PrintStream(Files.newOutputStream(path), false, "UTF-8")){
+			os.println("# CompressCbr statistics (times in ms, summed over the threads)");
+			os.println("pages="+iNbPages.sum());
+			os.println("wallTime="+wallNanos / 1000000);
+			os.println("readTime="+iReadNanos.sum() / 1000000);
+			os.println("decodeTime="+iDecodeNanos.sum() / 1000000);
+			os.println("encodeTime="+iEncodeNanos.sum() / 1000000);
+			os.println("writeTime="+iWriteNanos.sum() / 1000000);
+			os.println("inputBytes="+input);
+			os.println("outputBytes="+iOutputBytes.sum());
+			os.println("compressionRatio="+ratio);
+			os.println("pagesPerSecond="+getPagesPerSecond());
+		}
+
+		SummaryEvent event = new SummaryEvent();
+		if (event.shouldCommit()){
+			event.nbPages        = iNbPages.sum();
+			event.readTime       = iReadNanos.sum();
+			event.decodeTime     = iDecodeNanos.sum();
+			event.encodeTime     = iEncodeNanos.sum();
+			event.writeTime      = iWriteNanos.sum();
+			event.inputBytes     = input;
+			event.outputBytes    = iOutputBytes.sum();
+			event.pagesPerSecond = getPagesPerSecond();
+			event.commit();
+		}
+	}
+
+}
@@ -1,5 +1,10 @@
+import java.util.Objects;
+
 /**
  * FindArrayInArrayObj has a static function getPosition to find the position of an array in another array
+ * It exists for Object[] (compared with equals) and for byte[], char[], int[] and long[]
+ * (compared directly, without boxing), on whole arrays or on ranges of them.
+ * (to search the same needle many times, compile it with ArrayPattern)
  */
 
 public class FindArrayInArrayObj{
@@ -23,12 +28,155 @@ public class FindArrayInArrayObj{
 	}
 
 
+	/** Give the position of array2[from2...to2-1] in array1[from1...to1-1]
+	 *  @return the position in array1 (not relative to from1) or -1
+	 */
+	public static int getPosition(Object[] array1, int from1, int to1, Object[] array2, int from2, int to2){
+		Objects.checkFromToIndex(from1, to1, array1.length);
+		Objects.checkFromToIndex(from2, to2, array2.length);
+
+		int n2   = to2 - from2;
+		int last = to1 - n2;
+		for (int pos1 = from1; pos1 <= last; ++pos1){
+			if (arrayEquals(array1, pos1, array2, from2, n2))
+				return pos1;
+		}
+		return -1;
+	}
+
+
 	/** return if array1[pos1...pos1+size2-1] is equal to array2
 	 *  assert array1.length > size2
 	 */
 	private static boolean arrayEquals(Object[] array1, int pos1, Object[] array2, int size2){
+		return arrayEquals(array1, pos1, array2, 0, size2);
+	}
+
+	/** return if array1[pos1...pos1+size2-1] is equal to array2[pos2...pos2+size2-1] */
+	private static boolean arrayEquals(Object[] array1, int pos1, Object[] array2, int pos2, int size2){
+		for (int i=0; i < size2; ++i){
+			if (!array1[pos1+i].equals(array2[pos2+i]))
+				return false;
+		}
+		return true;
+	}
+
+
+	/** Give the position of array2 in array1 (without boxing) */
+	public static int getPosition(byte[] array1, byte[] array2){
+		return getPosition(array1, 0, array1.length, array2, 0, array2.length);
+	}
+
+	/** Give the position of array2[from2...to2-1] in array1[from1...to1-1]
+	 *  @return the position in array1 (not relative to from1) or -1
+	 */
+	public static int getPosition(byte[] array1, int from1, int to1, byte[] array2, int from2, int to2){
+		Objects.checkFromToIndex(from1, to1, array1.length);
+		Objects.checkFromToIndex(from2, to2, array2.length);
+
+		int n2   = to2 - from2;
+		int last = to1 - n2;
+		for (int pos1 = from1; pos1 <= last; ++pos1){
+			if (arrayEquals(array1, pos1, array2, from2, n2))
+				return pos1;
+		}
+		return -1;
+	}
+
+	/** return if array1[pos1...pos1+size2-1] is equal to array2[pos2...pos2+size2-1] */
+	private static boolean arrayEquals(byte[] array1, int pos1, byte[] array2, int pos2, int size2){
 		for (int i=0; i < size2; ++i){
-			if (!array1[pos1+i].equals(array2[i]))
+			if (array1[pos1+i] != array2[pos2+i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Give the position of array2 in array1 (without boxing) */
+	public static int getPosition(char[] array1, char[] array2){
+		return getPosition(array1, 0, array1.length, array2, 0, array2.length);
+	}
+
+	/** Give the position of array2[from2...to2-1] in array1[from1...to1-1]
+	 *  @return the position in array1 (not relative to from1) or -1
+	 */
+	public static int getPosition(char[] array1, int from1, int to1, char[] array2, int from2, int to2){
+		Objects.checkFromToIndex(from1, to1, array1.length);
+		Objects.checkFromToIndex(from2, to2, array2.length);
+
+		int n2   = to2 - from2;
+		int last = to1 - n2;
+		for (int pos1 = from1; pos1 <= last; ++pos1){
+			if (arrayEquals(array1, pos1, array2, from2, n2))
+				return pos1;
+		}
+		return -1;
+	}
+
+	/** return if array1[pos1...pos1+size2-1] is equal to array2[pos2...pos2+size2-1] */
+	private static boolean arrayEquals(char[] array1, int pos1, char[] array2, int pos2, int size2){
+		for (int i=0; i < size2; ++i){
+			if (array1[pos1+i] != array2[pos2+i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Give the position of array2 in array1 (without boxing) */
+	public static int getPosition(int[] array1, int[] array2){
+		return getPosition(array1, 0, array1.length, array2, 0, array2.length);
+	}
+
+	/** Give the position of array2[from2...to2-1] in array1[from1...to1-1]
+	 *  @return the position in array1 (not relative to from1) or -1
+	 */
+	public static int getPosition(int[] array1, int from1, int to1, int[] array2, int from2, int to2){
+		Objects.checkFromToIndex(from1, to1, array1.length);
+		Objects.checkFromToIndex(from2, to2, array2.length);
+
+		int n2   = to2 - from2;
+		int last = to1 - n2;
+		for (int pos1 = from1; pos1 <= last; ++pos1){
+			if (arrayEquals(array1, pos1, array2, from2, n2))
+				return pos1;
+		}
+		return -1;
+	}
+
+	/** return if array1[pos1...pos1+size2-1] is equal to array2[pos2...pos2+size2-1] */
+	private static boolean arrayEquals(int[] array1, int pos1, int[] array2, int pos2, int size2){
+		for (int i=0; i < size2; ++i){
+			if (array1[pos1+i] != array2[pos2+i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Give the position of array2 in array1 (without boxing) */
+	public static int getPosition(long[] array1, long[] array2){
+		return getPosition(array1, 0, array1.length, array2, 0, array2.length);
+	}
+
+	/** Give the position of array2[from2...to2-1] in array1[from1...to1-1]
+	 *  @return the position in array1 (not relative to from1) or -1
+	 */
+	public static int getPosition(long[] array1, int from1, int to1, long[] array2, int from2, int to2){
+		Objects.checkFromToIndex(from1, to1, array1.length);
+		Objects.checkFromToIndex(from2, to2, array2.length);
+
+		int n2   = to2 - from2;
+		int last = to1 - n2;
+		for (int pos1 = from1; pos1 <= last; ++pos1){
+			if (arrayEquals(array1, pos1, array2, from2, n2))
+				return pos1;
+		}
+		return -1;
+	}
+
+	/** return if array1[pos1...pos1+size2-1] is equal to array2[pos2...pos2+size2-1] */
+	private static boolean arrayEquals(long[] array1, int pos1, long[] array2, int pos2, int size2){
+		for (int i=0; i < size2; ++i){
+			if (array1[pos1+i] != array2[pos2+i])
 				return false;
 		}
 		return true;
@@ -90,5 +238,15 @@ public class FindArrayInArrayObj{
 		);
 		System.out.println(pos);
 
+		// primitive arrays (no boxing) and ranges
+		byte[] bytes = "220 ok\r\n.\r\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+		System.out.println( getPosition(bytes, new byte[]{'\r', '\n', '.', '\r', '\n'}) == 6 );
+		System.out.println( getPosition(bytes, 7, bytes.length, new byte[]{'\r', '\n'}, 0, 2) == 9 );
+		System.out.println( getPosition("abcabd".toCharArray(), "abd".toCharArray()) == 3 );
+		System.out.println( getPosition(new int[]{2, 3, 4, 5}, new int[]{4, 5}) == 2 );
+		System.out.println( getPosition(new int[]{2, 3, 4, 5}, 0, 3, new int[]{4, 5}, 0, 2) == -1 );
+		System.out.println( getPosition(new long[]{2, 3, 4, 5}, new long[]{2, 3, 4, 5, 6}) == -1 );
+		System.out.println( getPosition(new Integer[]{2, 3, 4, 5}, 1, 4, new Integer[]{0, 3, 4}, 1, 3) == 1 );
+
 	}
 }
@@ -0,0 +1,153 @@
+/**
+ * JpegHeader reads what is needed from the markers of a JPEG without decoding it:
+ * - SOFn: width, height and number of components
+ * - DQT: the luminance quantisation table, from which the quality it was encoded with
+ *   is estimated (by comparing it to the IJG table, as the JPEG writers scale it from the quality)
+ *
+ * It stops at the first SOS (start of the compressed data) so it only reads the header.
+ */
+public class JpegHeader {
+
+	/** Standard IJG luminance quantisation table (quality 50) in zigzag order (as in DQT) */
+	protected static final int[] stdLuminanceTable = {
+		16,  11,  12,  14,  12,  10,  16,  14,
+		13,  14,  18,  17,  16,  19,  24,  40,
+		26,  24,  22,  22,  24,  49,  35,  37,
+		29,  40,  58,  51,  61,  60,  57,  51,
+		56,  55,  64,  72,  92,  78,  64,  68,
+		87,  69,  55,  56,  80, 109,  81,  87,
+		95,  98, 103, 104, 103,  62,  77, 113,
+		121, 112, 100, 120,  92, 101, 103,  99
+	};
+
+	/** Typical size of a JPEG according to its quality (relative to quality 50) */
+	protected static final int[]   sizeQualities = {   5,   10,   20,   30,   40,   50,   60,   70,   80,   90,   95,  100 };
+	protected static final float[] relativeSizes = { 0.3f, 0.42f, 0.6f, 0.76f, 0.88f, 1.0f, 1.13f, 1.3f, 1.6f, 2.3f, 3.2f, 6.0f };
+
+
+	/** Width in pixels */
+	public int width;
+
+	/** Height in pixels */
+	public int height;
+
+	/** Number of components (1: gray, 3: colour) */
+	public int nbComponents;
+
+	/** Estimated quality from 1 to 100 (-1 if there is no luminance table) */
+	public int quality = -1;
+
+
+	/** Read the header of a JPEG
+	 *
+	 * @param data the JPEG
+	 * @return its header or null if it isn't a JPEG (or if it has no SOF before the SOS)
+	 */
+	public static JpegHeader read(byte[] data){
+		if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8){
+			return null;
+		}
+
+		JpegHeader header = new JpegHeader();
+		int pos = 2;
+		while (pos + 4 <= data.length){
+			if ((data[pos] & 0xFF) != 0xFF){
+				return null; // corrupted
+			}
+			int marker = data[pos+1] & 0xFF;
+			if (marker == 0xFF){
+				++pos; // fill byte
+				continue;
+			}
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)){
+				pos += 2; // no length
+				continue;
+			}
+			int length = ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+			int start  = pos + 4;
+			int end    = Math.min(data.length, pos + 2 + length);
+
+			if (marker == 0xDB){
+				header.readDqt(data, start, end);
+			} else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC){
+				if (end - start >= 6){
+					header.height       = ((data[start+1] & 0xFF) << 8) | (data[start+2] & 0xFF);
+					header.width        = ((data[start+3] & 0xFF) << 8) | (data[start+4] & 0xFF);
+					header.nbComponents = data[start+5] & 0xFF;
+				}
+			} else if (marker == 0xDA || marker == 0xD9){
+				break; // start of the compressed data (or end of the image)
+			}
+			pos += 2 + length;
+		}
+		return (header.width > 0 && header.height > 0) ? header : null;
+	}
+
+
+	/** Read the tables of a DQT segment and estimate the quality from the luminance one (id 0) */
+	private void readDqt(byte[] data, int pos, int end){
+		while (pos < end){
+			int precision = (data[pos] >> 4) & 0x0F; // 0: 8 bits, 1: 16 bits
+			int id        = data[pos] & 0x0F;
+			++pos;
+			int size = 64 * (precision + 1);
+			if (pos + size > end){
+				return;
+			}
+			if (id == 0){
+				double sum = 0;
+				for (int i = 0; i < 64; ++i){
+					int value = (precision == 0) ? (data[pos+i] & 0xFF)
+							: ((data[pos+2*i] & 0xFF) << 8) | (data[pos+2*i+1] & 0xFF);
+					sum += value * 100.0 / stdLuminanceTable[i];
+				}
+				quality = getQuality(sum / 64.0);
+			}
+			pos += size;
+		}
+	}
+
+
+	/** Inverse of the IJG scaling of the tables:
+	 *  scale = 5000 / quality (quality < 50) or 200 - 2 * quality
+	 *
+	 * @param scale average ratio (in %) of the table to the standard one
+	 * @return the quality from 1 to 100
+	 */
+	protected static int getQuality(double scale){
+		double quality = (scale <= 100) ? (200 - scale) / 2 : 5000 / scale;
+		return (int) Math.max(1, Math.min(100, Math.round(quality)));
+	}
+
+
+	/** Typical size of a JPEG encoded at a quality, relative to the same image at quality 50
+	 *
+	 * @param quality from 1 to 100
+	 * @return the relative size
+	 */
+	public static float getRelativeSize(int quality){
+		if (quality <= sizeQualities[0]){
+			return relativeSizes[0];
+		}
+		for (int i = 1; i < sizeQualities.length; ++i){
+			if (quality <= sizeQualities[i]){
+				float t = (float) (quality - sizeQualities[i-1]) / (sizeQualities[i] - sizeQualities[i-1]);
+				return relativeSizes[i-1] + t * (relativeSizes[i] - relativeSizes[i-1]);
+			}
+		}
+		return relativeSizes[relativeSizes.length - 1];
+	}
+
+
+	/** @param fileSize size of the JPEG
+	 *  @return the number of bytes per pixel */
+	public double getBytesPerPixel(long fileSize){
+		return (double) fileSize / ((long) width * height);
+	}
+
+	@Override
+	public String toString(){
+		return width+"x"+height+"x"+nbComponents+" quality "+quality;
+	}
+
+}
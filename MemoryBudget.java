@@ -0,0 +1,65 @@
+/**
+ * MemoryBudget admits work only while the memory it needs fits in a budget of bytes.
+ *
+ * - acquire blocks until the requested bytes are available
+ * - a request bigger than the whole budget is admitted when nothing else is running
+ *   (so a huge image is processed alone instead of never)
+ * - the bytes must be given back with release once the work is done
+ */
+public class MemoryBudget {
+
+	/** Size of the budget in bytes */
+	private final long iBudget;
+
+	/** Bytes currently used */
+	private long iUsed;
+
+	/** Highest value of iUsed */
+	private long iPeak;
+
+
+	/** Contructor
+	 *
+	 * @param aBudget size of the budget in bytes
+	 */
+	public MemoryBudget(long aBudget){
+		if (aBudget <= 0){
+			throw new IllegalArgumentException("The memory budget should be positive: "+aBudget);
+		}
+		iBudget = aBudget;
+		iUsed   = 0;
+		iPeak   = 0;
+	}
+
+
+	/** Wait until some bytes can be used
+	 *
+	 * @param bytes memory needed
+	 * @return the bytes that were reserved (to give to release)
+	 */
+	public synchronized long acquire(long bytes) throws InterruptedException {
+		bytes = Math.max(0, bytes);
+		while (iUsed > 0 && iUsed + bytes > iBudget){
+			wait();
+		}
+		iUsed += bytes;
+		iPeak  = Math.max(iPeak, iUsed);
+		return bytes;
+	}
+
+
+	/** Give back bytes reserved by acquire
+	 *
+	 * @param bytes the value returned by acquire
+	 */
+	public synchronized void release(long bytes){
+		iUsed -= bytes;
+		notifyAll();
+	}
+
+
+	public long getBudget()            { return iBudget; }
+	public synchronized long getUsed() { return iUsed; }
+	public synchronized long getPeak() { return iPeak; }
+
+}
@@ -0,0 +1,288 @@
+import java.io.PrintStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NntpConnectionScaler adapts the number of connections used on each NntpServer
+ * of a router with an AIMD policy (Additive Increase, Multiplicative Decrease):
+ *
+ * - every period it measures the throughput of the server (bytes of the articles retrieved)
+ * - if the provider throttled us (502 or 481) the connection limit is divided by two
+ *   and kept for iCooldownTicks periods before increasing again
+ * - otherwise it is increased by one while each new connection still brings throughput
+ *   (at least iMinGainPerConnection of the throughput of one connection)
+ * - when a new connection doesn't bring enough, it is removed and the limit is kept for
+ *   iReprobeTicks periods (or until the throughput jumps) before probing again
+ * - the limit always stays between 1 and the maximum of the provider
+ *
+ * The decisions are kept (last iHistorySize) so they can be displayed as metrics.
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class NntpConnectionScaler {
+
+	/** Connection limit set on the servers when the scaler starts */
+	public static int    iInitialConnections   = 4;
+
+	/** Minimum gain of an additional connection (ratio of the throughput per connection) */
+	public static double iMinGainPerConnection = 0.5;
+
+	/** Factor applied to the limit when the server throttles us */
+	public static double iDecreaseFactor       = 0.5;
+
+	/** Number of periods the limit is kept after a throttle before increasing it again */
+	public static int    iCooldownTicks        = 3;
+
+	/** Number of periods the limit is kept when a new connection didn't bring enough throughput */
+	public static int    iReprobeTicks         = 10;
+
+	/** Number of decisions kept for the metrics */
+	public static int    iHistorySize          = 100;
+
+
+	/** Kind of decision taken for a server */
+	public enum Action { INCREASE, DECREASE, HOLD }
+
+	/** A decision of the scaler */
+	public static class Decision {
+		public final long       timeMs;
+		public final NntpServer server;
+		public final Action     action;
+		public final int        oldLimit;
+		public final int        newLimit;
+		public final double     throughput; // bytes per second during the period
+		public final long       nbThrottled;
+
+		Decision(NntpServer aServer, Action aAction, int aOldLimit, int aNewLimit, double aThroughput, long aNbThrottled){
+			timeMs      = System.currentTimeMillis();
+			server      = aServer;
+			action      = aAction;
+			oldLimit    = aOldLimit;
+			newLimit    = aNewLimit;
+			throughput  = aThroughput;
+			nbThrottled = aNbThrottled;
+		}
+
+		@Override
+		public String toString(){
+			return server+": "+action+" "+oldLimit+" -> "+newLimit
+					+" ("+String.format("%.1f", throughput/1024.)+" KB/s, throttled: "+nbThrottled+")";
+		}
+	}
+
+
+	/** Measures of a server at the previous period */
+	private static class ServerState {
+		long   nbBytes;
+		long   nbThrottled;
+		double throughput;     // throughput of the previous period
+		int    limit;          // limit during the previous period
+		int    nbHoldTicks;    // periods left before increasing again (throttle or saturation)
+	}
+
+
+	/** Router whose servers are scaled */
+	private final NntpRouter iRouter;
+
+	/** Period between two decisions */
+	private final long iPeriodMs;
+
+	/** State of each server */
+	private final Map<NntpServer, ServerState> iStates;
+
+	/** Last decisions */
+	private final Deque<Decision> iDecisions;
+
+	/** Time of the previous period */
+	private long iLastTickNanos;
+
+	/** Scheduler calling tick */
+	private ScheduledExecutorService iScheduler;
+
+
+	/** Contructor
+	 *
+	 * @param aRouter   router whose servers are scaled
+	 * @param aPeriodMs period between two decisions (should cover several article downloads)
+	 */
+	public NntpConnectionScaler(NntpRouter aRouter, long aPeriodMs){
+		iRouter     = aRouter;
+		iPeriodMs   = aPeriodMs;
+		iStates     = new HashMap<>();
+		iDecisions  = new ArrayDeque<>();
+	}
+
+
+	/** Set the initial limits and start the periodic decisions */
+	public synchronized void start(){
+		for (NntpServer server : iRouter.getServers()){
+			server.setConnectionLimit(iInitialConnections);
+			ServerState state = new ServerState();
+			state.nbBytes     = server.getNbBytes();
+			state.nbThrottled = server.getNbThrottled();
+			state.limit       = server.getConnectionLimit();
+			iStates.put(server, state);
+		}
+		iLastTickNanos = System.nanoTime();
+
+		iScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "NntpConnectionScaler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		iScheduler.scheduleAtFixedRate(this::tick, iPeriodMs, iPeriodMs, TimeUnit.MILLISECONDS);
+	}
+
+
+	/** Stop the periodic decisions (the limits stay as they are) */
+	public synchronized void stop(){
+		if (iScheduler != null){
+			iScheduler.shutdownNow();
+			iScheduler = null;
+		}
+	}
+
+
+	/** Take a decision for each server */
+	public synchronized void tick(){
+		long now = System.nanoTime();
+		double seconds = (now - iLastTickNanos) / 1e9;
+		iLastTickNanos = now;
+		if (seconds <= 0){
+			return;
+		}
+
+		for (NntpServer server : iRouter.getServers()){
+			ServerState state = iStates.get(server);
+			if (state == null){
+				// server added after the start
+				state = new ServerState();
+				state.limit = server.getConnectionLimit();
+				iStates.put(server, state);
+			}
+
+			long   nbBytes     = server.getNbBytes();
+			long   nbThrottled = server.getNbThrottled();
+			double throughput  = (nbBytes - state.nbBytes) / seconds;
+			long   newThrottle = nbThrottled - state.nbThrottled;
+			int    limit       = server.getConnectionLimit();
+
+			Action action;
+			int    newLimit;
+			if (newThrottle > 0){
+				// multiplicative decrease
+				action   = Action.DECREASE;
+				newLimit = Math.max(1, (int) (limit * iDecreaseFactor));
+				state.nbHoldTicks = iCooldownTicks;
+			} else if (throughput == 0){
+				// no activity, nothing to measure
+				action   = Action.HOLD;
+				newLimit = limit;
+			} else {
+				boolean isUseless = false;
+				if (limit > state.limit && state.throughput > 0){
+					// did the connections we added bring enough throughput?
+					double perConnection = state.throughput / state.limit;
+					double gain = (throughput - state.throughput) / (limit - state.limit);
+					if (gain < perConnection * iMinGainPerConnection){
+						state.nbHoldTicks = iReprobeTicks;
+						isUseless = true;
+					}
+				} else if (state.nbHoldTicks > 0){
+					if (limit == state.limit && throughput > state.throughput * 1.2){
+						// the conditions have changed, let's probe again
+						state.nbHoldTicks = 0;
+					} else {
+						--state.nbHoldTicks;
+					}
+				}
+
+				if (isUseless){
+					// back to the limit before the probe
+					action   = Action.DECREASE;
+					newLimit = state.limit;
+				} else if (state.nbHoldTicks == 0 && limit < server.getMaxConnections()){
+					// additive increase
+					action   = Action.INCREASE;
+					newLimit = limit + 1;
+				} else {
+					action   = Action.HOLD;
+					newLimit = limit;
+				}
+			}
+
+			if (newLimit != limit){
+				server.setConnectionLimit(newLimit);
+			}
+			addDecision(new Decision(server, action, limit, server.getConnectionLimit(), throughput, newThrottle));
+
+			state.nbBytes     = nbBytes;
+			state.nbThrottled = nbThrottled;
+			state.throughput  = throughput;
+			state.limit       = limit;
+		}
+	}
+
+
+	/** Keep a decision in the history
+	 *
+	 * @param decision the decision
+	 */
+	private void addDecision(Decision decision){
+		iDecisions.addLast(decision);
+		while (iDecisions.size() > iHistorySize){
+			iDecisions.pollFirst();
+		}
+	}
+
+
+	/** @return the last decisions (oldest first) */
+	public synchronized List<Decision> getDecisions(){
+		return new ArrayList<>(iDecisions);
+	}
+
+
+	/** @return the current connection limit of each server */
+	public synchronized Map<NntpServer, Integer> getConnectionLimits(){
+		Map<NntpServer, Integer> limits = new HashMap<>();
+		for (NntpServer server : iRouter.getServers()){
+			limits.put(server, server.getConnectionLimit());
+		}
+		return limits;
+	}
+
+
+	/** @return the throughput measured on each server during the last period (bytes per second) */
+	public synchronized Map<NntpServer, Double> getThroughputs(){
+		Map<NntpServer, Double> throughputs = new HashMap<>();
+		for (Map.Entry<NntpServer, ServerState> entry : iStates.entrySet()){
+			throughputs.put(entry.getKey(), entry.getValue().throughput);
+		}
+		return throughputs;
+	}
+
+
+	/** Display the last decisions and the current limits
+	 *
+	 * @param outputStream Stream where to print them
+	 */
+	public void printMetrics(PrintStream outputStream){
+		for (Decision decision : getDecisions()){
+			outputStream.println(decision);
+		}
+		iRouter.printStats(outputStream);
+	}
+
+}
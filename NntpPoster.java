@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.IllegalArgumentException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * NntpPoster uploads files on a Newsgroup Server and generates the NZB of the post.
+ *
+ * - each file is cut in segments of iSegmentSize bytes read with positional
+ *   FileChannel reads (so several connections can read the same file)
+ * - each segment is yEnc encoded (with its CRC32) directly after the headers
+ *   of the article, in a buffer taken from a pool (no copy of the article)
+ * - the articles are posted in parallel on all the connections of the server
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class NntpPoster {
+
+	/** Size of the segments (raw bytes per article) */
+	public static int iSegmentSize = 750 * 1024;
+
+	/** Length of the yEnc lines */
+	public static int iLineLength  = YEnc.defaultLineLength;
+
+	/** Number of times we try to post an article */
+	public static int iNbTries     = 3;
+
+
+	/** A segment of a file (one article) */
+	public static class Segment {
+		public final int    number;   // starting at 1
+		public final long   offset;   // position in the file
+		public final int    size;     // raw bytes
+		public final String messageId;
+		public int          encodedSize;
+		public int          code;     // last response code of the server (240 if posted)
+
+		Segment(int aNumber, long aOffset, int aSize, String aMessageId){
+			number    = aNumber;
+			offset    = aOffset;
+			size      = aSize;
+			messageId = aMessageId;
+			code      = -1;
+		}
+
+		public boolean isPosted(){ return code == NntpSocket.articlePosted; }
+	}
+
+	/** A posted file with its segments */
+	public static class PostedFile {
+		public final Path          path;
+		public final String        name;
+		public final long          size;
+		public final int           fileNumber;
+		public final int           nbFiles;
+		public final List<Segment> segments;
+
+		PostedFile(Path aPath, long aSize, int aFileNumber, int aNbFiles){
+			path       = aPath;
+			name       = aPath.getFileName().toString();
+			size       = aSize;
+			fileNumber = aFileNumber;
+			nbFiles    = aNbFiles;
+			segments   = new ArrayList<>();
+		}
+
+		/** @return the subject of an article of the file */
+		public String getSubject(int part){
+			return "["+fileNumber+"/"+nbFiles+"] - \""+name+"\" yEnc ("+part+"/"+segments.size()+") "+size;
+		}
+	}
+
+
+	/** Server where we post */
+	private final NntpServer iServer;
+
+	/** From header */
+	private final String iFrom;
+
+	/** Newsgroups where we post (comma separated) */
+	private final String iNewsgroups;
+
+	/** Domain of the message ids */
+	private final String iDomain;
+
+	/** charset of the headers */
+	private final Charset iCharset;
+
+	/** Buffers used to read the segments */
+	private BlockingQueue<byte[]>     iReadBuffers;
+
+	/** Buffers used to build the articles */
+	private BlockingQueue<ByteBuffer> iArticleBuffers;
+
+
+	/** Contructor
+	 *
+	 * @param aServer     server where we post
+	 * @param aFrom       From header (poster)
+	 * @param aNewsgroups newsgroups where we post (comma separated)
+	 * @param aDomain     domain used for the message ids
+	 */
+	public NntpPoster(NntpServer aServer, String aFrom, String aNewsgroups, String aDomain){
+		iServer     = aServer;
+		iFrom       = aFrom;
+		iNewsgroups = aNewsgroups;
+		iDomain     = aDomain;
+		iCharset    = Charset.forName(SocketASCII.defaultCharset);
+	}
+
+
+	/** Post files using all the connections of the server
+	 *
+	 * @param files files to post
+	 * @return the posted files with their segments (check Segment.isPosted)
+	 */
+	public List<PostedFile> post(List<Path> files) throws IOException, InterruptedException {
+		// Cut the files in segments
+		List<PostedFile> postedFiles = new ArrayList<>();
+		int fileNumber = 0;
+		for (Path path : files){
+			++fileNumber;
+			long size = Files.size(path);
+			int nbSegments = (int) Math.max(1, (size + iSegmentSize - 1) / iSegmentSize);
+			PostedFile file = new PostedFile(path, size, fileNumber, files.size());
+			for (int i = 0; i < nbSegments; ++i){
+				long offset = (long) i * iSegmentSize;
+				file.segments.add(new Segment(i+1, offset, (int) Math.min(iSegmentSize, size - offset), newMessageId()));
+			}
+			postedFiles.add(file);
+		}
+
+		// the headers and yEnc lines depend on the subject, the name and the newsgroups
+		int headerMaxSize = 0;
+		for (PostedFile file : postedFiles){
+			for (Segment segment : file.segments){
+				headerMaxSize = Math.max(headerMaxSize, getHeader(file, segment).length + getTrailer(segment, 0).length);
+			}
+		}
+
+		// One buffer of each kind per connection
+		int nbThreads = iServer.getConnectionLimit();
+		iReadBuffers    = new ArrayBlockingQueue<>(nbThreads);
+		iArticleBuffers = new ArrayBlockingQueue<>(nbThreads);
+		for (int i = 0; i < nbThreads; ++i){
+			iReadBuffers.add(new byte[iSegmentSize]);
+			iArticleBuffers.add(ByteBuffer.allocate(headerMaxSize + YEnc.maxEncodedSize(iSegmentSize, iLineLength)));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+		List<FileChannel> channels = new ArrayList<>();
+		try {
+			for (PostedFile file : postedFiles){
+				FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ);
+				channels.add(channel);
+				for (Segment segment : file.segments){
+					pool.execute(() -> postSegment(channel, file, segment));
+				}
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			pool.shutdownNow();
+			for (FileChannel channel : channels){
+				channel.close();
+			}
+		}
+		return postedFiles;
+	}
+
+
+	/** Read, encode and post a segment (retrying on errors)
+	 *
+	 * @param channel channel of the file
+	 * @param file    the file
+	 * @param segment the segment
+	 */
+	protected void postSegment(FileChannel channel, PostedFile file, Segment segment){
+		byte[]     data    = null;
+		ByteBuffer article = null;
+		try {
+			data    = iReadBuffers.take();
+			article = iArticleBuffers.take();
+
+			// positional read: the channel is shared by the connections
+			ByteBuffer in = ByteBuffer.wrap(data, 0, segment.size);
+			long pos = segment.offset;
+			while (in.hasRemaining()){
+				int nbRead = channel.read(in, pos);
+				if (nbRead < 0){
+					throw new IOException("Unexpected end of file "+file.path);
+				}
+				pos += nbRead;
+			}
+
+			buildArticle(article, file, segment, data);
+			segment.encodedSize = article.remaining();
+
+			for (int tries = 0; tries < iNbTries && !segment.isPosted(); ++tries){
+				NntpSocket sock = iServer.acquire();
+				if (sock == null){
+					continue;
+				}
+				long    time   = System.nanoTime();
+				boolean usable = true;
+				try {
+					article.rewind();
+					segment.code = sock.doPost(article);
+				} catch (IOException|IllegalArgumentException e){
+					sock.debug("NntpPoster::postSegment", "Error posting "+segment.messageId, e);
+					segment.code = -1;
+					usable       = false;
+				}
+				iServer.release(sock, usable);
+				iServer.addResult(segment.code, segment.encodedSize, System.nanoTime() - time);
+			}
+		} catch (IOException e){
+			System.err.println("Error reading segment "+segment.number+" of "+file.path+": "+e);
+		} catch (RuntimeException e){
+			System.err.println("Error building segment "+segment.number+" of "+file.path+": "+e);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally {
+			if (data != null){
+				iReadBuffers.add(data);
+			}
+			if (article != null){
+				iArticleBuffers.add(article);
+			}
+		}
+	}
+
+
+	/** Write the headers and the yEnc body of an article in a buffer
+	 *
+	 * @param article buffer (cleared then flipped, ready to be written)
+	 * @param file    the file
+	 * @param segment the segment
+	 * @param data    raw data of the segment
+	 */
+	protected void buildArticle(ByteBuffer article, PostedFile file, Segment segment, byte[] data){
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, segment.size);
+
+		article.clear();
+		article.put(getHeader(file, segment));
+		YEnc.encode(data, 0, segment.size, article, iLineLength);
+		article.put(getTrailer(segment, crc.getValue()));
+		article.flip();
+	}
+
+
+	/** Headers and yEnc lines before the body of an article
+	 *
+	 * @param file    the file
+	 * @param segment the segment
+	 * @return the bytes to write
+	 */
+	protected byte[] getHeader(PostedFile file, Segment segment){
+		int nbParts = file.segments.size();
+		StringBuilder header = new StringBuilder(512);
+		header.append("From: ").append(iFrom).append("\r\n")
+			.append("Newsgroups: ").append(iNewsgroups).append("\r\n")
+			.append("Subject: ").append(file.getSubject(segment.number)).append("\r\n")
+			.append("Message-ID: ").append(segment.messageId).append("\r\n")
+			.append("\r\n")
+			.append("=ybegin part=").append(segment.number).append(" total=").append(nbParts)
+			.append(" line=").append(iLineLength).append(" size=").append(file.size)
+			.append(" name=").append(file.name).append("\r\n")
+			.append("=ypart begin=").append(segment.offset + 1)
+			.append(" end=").append(segment.offset + segment.size).append("\r\n");
+		return header.toString().getBytes(iCharset);
+	}
+
+
+	/** yEnc line and terminating line after the body of an article
+	 *
+	 * @param segment the segment
+	 * @param crc     CRC32 of the raw data of the segment
+	 * @return the bytes to write
+	 */
+	protected byte[] getTrailer(Segment segment, long crc){
+		return ("=yend size="+segment.size+" part="+segment.number
+				+" pcrc32="+String.format("%08x", crc)+"\r\n.\r\n").getBytes(iCharset);
+	}
+
+
+	/** @return a new unique message id (with the angle brackets) */
+	protected String newMessageId(){
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		return "<"+Long.toHexString(rand.nextLong())+Long.toHexString(System.nanoTime())+"@"+iDomain+">";
+	}
+
+
+	/** Write the NZB of a post
+	 *
+	 * @param files        the posted files
+	 * @param outputStream where to write the NZB
+	 */
+	public void writeNzb(List<PostedFile> files, PrintStream outputStream){
+		long date = System.currentTimeMillis() / 1000;
+		outputStream.print("<?xml version=\"1.0\" encoding=\"iso-8859-1\" ?>\n"
+				+"<!DOCTYPE nzb PUBLIC \"-//newzBin//DTD NZB 1.1//EN\" \"http://www.newzbin.com/DTD/nzb/nzb-1.1.dtd\">\n"
+				+"<nzb xmlns=\"http://www.newzbin.com/DTD/2003/nzb\">\n");
+		for (PostedFile file : files){
+			outputStream.print(" <file poster=\""+escapeXml(iFrom)+"\" date=\""+date
+					+"\" subject=\""+escapeXml(file.getSubject(1))+"\">\n  <groups>\n");
+			for (String group : iNewsgroups.split(",")){
+				outputStream.print("   <group>"+escapeXml(group.trim())+"</group>\n");
+			}
+			outputStream.print("  </groups>\n  <segments>\n");
+			for (Segment segment : file.segments){
+				if (!segment.isPosted()){
+					continue;
+				}
+				String id = segment.messageId.substring(1, segment.messageId.length() - 1);
+				outputStream.print("   <segment bytes=\""+segment.encodedSize+"\" number=\""+segment.number+"\">"
+						+escapeXml(id)+"</segment>\n");
+			}
+			outputStream.print("  </segments>\n </file>\n");
+		}
+		outputStream.print("</nzb>\n");
+	}
+
+
+	/** Escape the XML special characters
+	 *
+	 * @param str the string to escape
+	 * @return the escaped string
+	 */
+	protected static String escapeXml(String str){
+		return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+
+
+	/** Example on how to use it*/
+	public static void main(String args[]) throws Exception {
+		SocketASCII.isDebug   = false;
+		NntpSocket.isPrintCmd = false;
+
+		NntpServer server = new NntpServer("news.primary.com", 119, "myUsername", "myPassword", 0, 20, false, 1024);
+		NntpPoster poster = new NntpPoster(server, "poster <poster@example.com>", "alt.binaries.test", "example.com");
+
+		List<Path> files = new ArrayList<>();
+		for (String arg : args){
+			files.add(Paths.get(arg));
+		}
+
+		long start = System.currentTimeMillis();
+		List<PostedFile> posted = poster.post(files);
+		long bytes = 0;
+		int  nbFailed = 0;
+		for (PostedFile file : posted){
+			for (Segment segment : file.segments){
+				if (segment.isPosted()){
+					bytes += segment.encodedSize;
+				} else {
+					++nbFailed;
+				}
+			}
+		}
+		long duration = Math.max(1, System.currentTimeMillis() - start);
+		System.err.println("Posted "+bytes+" bytes in "+duration+" ms ("+(bytes / duration)+" KB/s), failed segments: "+nbFailed);
+
+		try (PrintStream nzb = new PrintStream(Files.newOutputStream(Paths.get("post.nzb")), false, "ISO-8859-1")){
+			poster.writeNzb(posted, nzb);
+		}
+		server.closeIdleSockets();
+	}
+
+}
@@ -0,0 +1,280 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.IllegalArgumentException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NntpRouter retrieves articles across several NntpServer.
+ *
+ * - the main servers are tried by priority, then by their availability
+ *   (ratio of articles they had among those we asked them)
+ * - when an article is missing on all of them (430) the fill servers are tried
+ *   in the same order
+ * - each server has its own pool of NntpSocket bounded by its number of connections
+ * - a server that can't be reached is skipped for a while (cf NntpServer.iRetryDelayMs)
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class NntpRouter {
+
+	/** What to do with the articles retrieved by fetchArticles */
+	public interface ArticleHandler {
+		/** Called when an article has been retrieved
+		 *
+		 * @param messageId id of the article
+		 * @param article   content of the article (without the terminating line)
+		 * @param length    length of the article in the array
+		 */
+		void onArticle(String messageId, byte[] article, int length);
+
+		/** Called when no server could provide the article
+		 *
+		 * @param messageId id of the article
+		 * @param code      last response code (430 if missing everywhere, -1 for errors)
+		 */
+		void onMissing(String messageId, int code);
+	}
+
+
+	/** Orders the servers by priority and then by availability */
+	protected static final Comparator<NntpServer> routingOrder =
+			Comparator.comparingInt(NntpServer::getPriority)
+			.thenComparing(Comparator.comparingDouble(NntpServer::getAvailability).reversed());
+
+	/** Main servers */
+	private final List<NntpServer> mainServers;
+
+	/** Fill servers (only used for articles missing on the main servers) */
+	private final List<NntpServer> fillServers;
+
+	/** Command used to get the articles (body, article) */
+	private String articleCmd;
+
+
+	/** Contructor */
+	public NntpRouter(){
+		mainServers = new ArrayList<>();
+		fillServers = new ArrayList<>();
+		articleCmd  = "body";
+	}
+
+
+	/** Add a server to the router
+	 *
+	 * @param server the server (main or fill)
+	 */
+	public synchronized void addServer(NntpServer server){
+		if (server.isFillServer()){
+			fillServers.add(server);
+		} else {
+			mainServers.add(server);
+		}
+	}
+
+
+	/** Set the command used to retrieve the articles
+	 *
+	 * @param cmd "body" (default) or "article"
+	 */
+	public void setArticleCmd(String cmd){
+		articleCmd = cmd;
+	}
+
+
+	/** @return the servers in the order they should be tried for the next article */
+	public synchronized List<NntpServer> getRoutingOrder(){
+		List<NntpServer> mains = new ArrayList<>(mainServers);
+		List<NntpServer> fills = new ArrayList<>(fillServers);
+		mains.sort(routingOrder);
+		fills.sort(routingOrder);
+
+		List<NntpServer> order = new ArrayList<>(mains.size() + fills.size());
+		order.addAll(mains);
+		order.addAll(fills);
+		return order;
+	}
+
+
+	/** @return all the servers (main and fill) */
+	public synchronized List<NntpServer> getServers(){
+		List<NntpServer> servers = new ArrayList<>(mainServers);
+		servers.addAll(fillServers);
+		return servers;
+	}
+
+
+	/** Retrieve an article trying every server until one has it
+	 *
+	 * @param messageId    id of the article (with or without the angle brackets)
+	 * @param outputStream where to write the article (only written if found)
+	 * @return the response code of the server that had it, or the last one we got
+	 *         (430 if it is missing everywhere, -1 if no server could answer)
+	 */
+	public int fetchArticle(String messageId, ByteArrayOutputStream outputStream) throws InterruptedException {
+		String cmd = articleCmd+" "+formatMessageId(messageId);
+
+		int lastCode = -1;
+		ByteArrayOutputStream attempt = null;
+		for (NntpServer server : getRoutingOrder()){
+			NntpSocket sock = server.acquire();
+			if (sock == null){
+				continue;
+			}
+
+			// each attempt has its own buffer so a partial article is never written
+			if (attempt == null){
+				attempt = new ByteArrayOutputStream();
+			} else {
+				attempt.reset();
+			}
+			int     code;
+			long    time   = System.nanoTime();
+			boolean usable = true;
+			try {
+				code = sock.doArticleCmd(cmd, attempt);
+			} catch (IOException|IllegalArgumentException e){
+				sock.debug("NntpRouter::fetchArticle", "Error retrieving "+messageId+" on "+server, e);
+				code   = -1;
+				usable = false;
+			}
+			server.release(sock, usable);
+			server.addResult(code, attempt.size(), System.nanoTime() - time);
+
+			if (code >= 200 && code < 300){
+				outputStream.writeBytes(attempt.toByteArray());
+				return code;
+			}
+
+			if (code != -1 || lastCode == -1){
+				lastCode = code;
+			}
+		}
+		return lastCode;
+	}
+
+
+	/** Retrieve a list of articles in parallel
+	 *  using as many threads as the total number of connections of the servers
+	 *
+	 * @param messageIds ids of the articles
+	 * @param handler    called (from the worker threads) for each article
+	 * @return the number of articles retrieved
+	 */
+	public int fetchArticles(List<String> messageIds, ArticleHandler handler) throws InterruptedException {
+		int nbThreads = 0;
+		for (NntpServer server : getServers()){
+			nbThreads += server.getMaxConnections();
+		}
+		if (nbThreads == 0){
+			throw new IllegalStateException("No server defined");
+		}
+
+		final AtomicInteger nbFetched = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(nbThreads, Math.max(1, messageIds.size())));
+		for (final String messageId : messageIds){
+			pool.execute(() -> {
+				ByteArrayOutputStream article = new ByteArrayOutputStream();
+				int code;
+				try {
+					code = fetchArticle(messageId, article);
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+
+				if (code >= 200 && code < 300){
+					nbFetched.incrementAndGet();
+					handler.onArticle(messageId, article.toByteArray(), article.size());
+				} else {
+					handler.onMissing(messageId, code);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		return nbFetched.get();
+	}
+
+
+	/** Close all the connections of the servers */
+	public void close(){
+		for (NntpServer server : getServers()){
+			server.closeIdleSockets();
+		}
+	}
+
+
+	/** Display the statistics of all the servers
+	 *
+	 * @param outputStream Stream where to print them
+	 */
+	public void printStats(PrintStream outputStream){
+		for (NntpServer server : getRoutingOrder()){
+			server.printStats(outputStream);
+		}
+	}
+
+
+	/** Add the angle brackets to a message id if needed
+	 *
+	 * @param messageId id of the article
+	 * @return the message id between angle brackets
+	 */
+	public static String formatMessageId(String messageId){
+		if (messageId.startsWith("<")){
+			return messageId;
+		}
+		return "<"+messageId+">";
+	}
+
+
+
+	/** Example on how to use it*/
+	public static void main(String args[]) throws Exception {
+		SocketASCII.isDebug   = false;
+		NntpSocket.isPrintCmd = false;
+
+		NntpRouter router = new NntpRouter();
+		router.addServer(new NntpServer("news.primary.com", 119, "myUsername", "myPassword", 0, 20, false, 1024));
+		router.addServer(new NntpServer("news.backup.com",  119, "myUsername", "myPassword", 1, 10, false, 1024));
+		router.addServer(new NntpServer("news.fill.com",    119, "myUsername", "myPassword", 0,  4, true,  1024));
+
+		List<String> messageIds = new ArrayList<>();
+		for (String arg : args){
+			messageIds.add(arg);
+		}
+
+		// adapt the number of connections to the measured throughput
+		NntpConnectionScaler scaler = new NntpConnectionScaler(router, 2000);
+		scaler.start();
+
+		int nbFetched = router.fetchArticles(messageIds, new ArticleHandler() {
+			public void onArticle(String messageId, byte[] article, int length){
+				System.out.println("- "+messageId+": "+length+" bytes");
+			}
+			public void onMissing(String messageId, int code){
+				System.out.println("- "+messageId+": missing (code "+code+")");
+			}
+		});
+
+		scaler.stop();
+
+		System.out.println("\nNumber of articles retrieved: "+nbFetched+"/"+messageIds.size());
+		scaler.printMetrics(System.out);
+		router.close();
+	}
+
+}
@@ -0,0 +1,373 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NntpServer describes a Newsgroup Server used by NntpRouter
+ * and keeps a pool of NntpSocket connected (and authenticated) on it.
+ *
+ * - priority: the servers with the lowest priority are used first
+ * - maxConnections: maximum number of connections allowed by the provider
+ * - fill server: only used when an article is missing on the main servers
+ *
+ * It also keeps the statistics of the articles requested
+ * so the router can favour the servers that have most of them.
+ *
+ * After iMaxConnectFailures connections failed in a row, no new connection is tried
+ * for iRetryDelayMs (acquire gives null at once) so an unreachable server
+ * doesn't cost a connect timeout for every article.
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class NntpServer {
+
+	/** Number of connections failing in a row after which the server is considered down */
+	public static int  iMaxConnectFailures = 3;
+
+	/** Time during which no connection is tried on a server that is down */
+	public static long iRetryDelayMs       = 30000;
+
+	/** Stream used to swallow the welcome and authentication messages */
+	protected static final PrintStream nullOutput = new PrintStream(OutputStream.nullOutputStream());
+
+	/** hostname */
+	protected final String  host;
+
+	/** port */
+	protected final int     port;
+
+	/** username (null if no authentication needed) */
+	protected final String  user;
+
+	/** password */
+	protected final String  pass;
+
+	/** the servers with the lowest priority are used first */
+	protected final int     priority;
+
+	/** maximum number of connections allowed on this server */
+	protected final int     maxConnections;
+
+	/** is it a fill server (only used for articles missing on the main ones) */
+	protected final boolean isFillServer;
+
+	/** buffer size of the NntpSocket created */
+	protected final int     bufferSize;
+
+	/** current limit of connections (between 1 and maxConnections) */
+	private int connectionLimit;
+
+	/** number of connections currently used */
+	private int nbInUse;
+
+	/** Sockets connected and authenticated, ready to be used */
+	private final Deque<NntpSocket> idleSockets;
+
+	/** Number of articles requested on this server */
+	private final AtomicLong nbRequests = new AtomicLong();
+
+	/** Number of STAT requests (existence checks without transfer) */
+	private final AtomicLong nbStatRequests = new AtomicLong();
+
+	/** Number of articles found on this server */
+	private final AtomicLong nbFound    = new AtomicLong();
+
+	/** Number of articles missing on this server (430) */
+	private final AtomicLong nbMissing  = new AtomicLong();
+
+	/** Number of errors (connection, IO or unexpected response) */
+	private final AtomicLong nbErrors   = new AtomicLong();
+
+	/** Number of throttling responses (502 or 481: too many connections) */
+	private final AtomicLong nbThrottled = new AtomicLong();
+
+	/** Number of bytes of the articles retrieved */
+	private final AtomicLong nbBytes    = new AtomicLong();
+
+	/** Time spent retrieving the articles (sum over all the connections) */
+	private final AtomicLong requestNanos = new AtomicLong();
+
+	/** Number of connections that failed in a row */
+	private final AtomicInteger nbConnectFailures = new AtomicInteger();
+
+	/** No connection is tried before this time (server down) */
+	private volatile long downUntilMs;
+
+
+	/** Contructor
+	 *
+	 * @param aHost           hostname
+	 * @param aPort           port
+	 * @param aUser           username (null if no authentication needed)
+	 * @param aPass           password
+	 * @param aPriority       the servers with the lowest priority are used first
+	 * @param aMaxConnections maximum number of connections allowed
+	 * @param aIsFillServer   only use it for articles missing on the main servers
+	 * @param aBufferSize     buffer size of the sockets (should be bigger than the longest line)
+	 */
+	public NntpServer(String aHost, int aPort, String aUser, String aPass,
+			int aPriority, int aMaxConnections, boolean aIsFillServer, int aBufferSize){
+		if (aMaxConnections < 1){
+			throw new IllegalArgumentException("maxConnections should be at least 1 for "+aHost);
+		}
+		host            = aHost;
+		port            = aPort;
+		user            = aUser;
+		pass            = aPass;
+		priority        = aPriority;
+		maxConnections  = aMaxConnections;
+		isFillServer    = aIsFillServer;
+		bufferSize      = aBufferSize;
+
+		connectionLimit = aMaxConnections;
+		nbInUse         = 0;
+		idleSockets     = new ArrayDeque<>();
+	}
+
+
+	/** Get a socket connected to the server
+	 *  It blocks until the number of connections used is below the connection limit
+	 *
+	 * @return a socket ready to be used or null if the connection or the authentication failed
+	 *         (at once if the server is down and has no idle socket)
+	 */
+	public NntpSocket acquire() throws InterruptedException {
+		NntpSocket sock;
+		synchronized (this) {
+			while (nbInUse >= connectionLimit){
+				wait();
+			}
+			if (idleSockets.isEmpty() && isDown()){
+				return null;
+			}
+			++nbInUse;
+			sock = idleSockets.pollFirst();
+		}
+
+		if (sock == null){
+			sock = openSocket();
+			if (sock == null){
+				nbErrors.incrementAndGet();
+				if (nbConnectFailures.incrementAndGet() >= iMaxConnectFailures){
+					downUntilMs = System.currentTimeMillis() + iRetryDelayMs;
+				}
+				release(null, false);
+			} else {
+				nbConnectFailures.set(0);
+			}
+		}
+		return sock;
+	}
+
+
+	/** @return if no connection should be tried (too many failures in a row, cf iRetryDelayMs) */
+	public boolean isDown(){
+		return System.currentTimeMillis() < downUntilMs;
+	}
+
+
+	/** Give back a socket got by acquire
+	 *
+	 * @param sock     the socket
+	 * @param reusable false if there was an error on it (it will be closed)
+	 */
+	public void release(NntpSocket sock, boolean reusable){
+		boolean keep = false;
+		synchronized (this) {
+			--nbInUse;
+			if (sock != null && reusable && sock.isConnected()
+					&& (idleSockets.size() + nbInUse < connectionLimit) ){
+				idleSockets.addFirst(sock);
+				keep = true;
+			}
+			notifyAll();
+		}
+
+		if (sock != null && !keep){
+			closeSocket(sock, reusable);
+		}
+	}
+
+
+	/** Open a new connection and authenticate
+	 *
+	 * @return the socket or null if it failed
+	 */
+	protected NntpSocket openSocket(){
+		NntpSocket sock = new NntpSocket(bufferSize);
+		if (!sock.connect(nullOutput, host, port)){
+			sock.debug("NntpServer::openSocket", "Couldn't connect to "+this);
+			checkThrottling(sock.getResponseCode());
+			sock.close();
+			return null;
+		}
+
+		if (user != null && !sock.doAuthentication(nullOutput, user, pass)){
+			sock.debug("NntpServer::openSocket", "Authentication failed on "+this);
+			checkThrottling(sock.getResponseCode());
+			sock.close();
+			return null;
+		}
+		return sock;
+	}
+
+
+	/** Close a socket (sending the quit message if it is still usable)
+	 *
+	 * @param sock   the socket
+	 * @param doQuit send the quit message before closing
+	 */
+	protected void closeSocket(NntpSocket sock, boolean doQuit){
+		if (doQuit){
+			sock.close(nullOutput);
+		} else {
+			sock.close();
+		}
+	}
+
+
+	/** Close all the idle sockets */
+	public void closeIdleSockets(){
+		Deque<NntpSocket> toClose;
+		synchronized (this) {
+			toClose = new ArrayDeque<>(idleSockets);
+			idleSockets.clear();
+		}
+		for (NntpSocket sock : toClose){
+			closeSocket(sock, true);
+		}
+	}
+
+
+	/** Record the result of an article request
+	 *
+	 * @param code        response code of the server (-1 for an IO error)
+	 * @param nbBytesRead size of the article retrieved
+	 * @param nanos       duration of the request
+	 */
+	public void addResult(int code, long nbBytesRead, long nanos){
+		nbRequests.incrementAndGet();
+		nbBytes.addAndGet(nbBytesRead);
+		requestNanos.addAndGet(nanos);
+		addCode(code);
+	}
+
+
+	/** Record the result of a STAT command (existence check without transfer)
+	 *
+	 * @param code response code of the server
+	 */
+	public void addStatResult(int code){
+		nbStatRequests.incrementAndGet();
+		addCode(code);
+	}
+
+
+	/** Count the response of a request (found, missing or error)
+	 *
+	 * @param code response code of the server
+	 */
+	private void addCode(int code){
+		if (code == NntpSocket.noSuchArticle){
+			nbMissing.incrementAndGet();
+		} else if (code >= 200 && code < 300){
+			nbFound.incrementAndGet();
+		} else {
+			nbErrors.incrementAndGet();
+			checkThrottling(code);
+		}
+	}
+
+
+	/** Count the responses of a provider refusing more connections
+	 *
+	 * @param code response code of the server
+	 */
+	protected void checkThrottling(int code){
+		if (code == NntpSocket.accessDenied || code == NntpSocket.authRejected){
+			nbThrottled.incrementAndGet();
+		}
+	}
+
+
+	/** Estimated probability that this server has an article
+	 *  (Laplace smoothing so a new server starts at 0.5)
+	 *
+	 * @return ratio of found articles between 0 and 1
+	 */
+	public double getAvailability(){
+		long found   = nbFound.get();
+		long missing = nbMissing.get();
+		return (found + 1.) / (found + missing + 2.);
+	}
+
+
+	/** Change the number of connections that can be used simultaneously
+	 *
+	 * @param aLimit new limit (bounded between 1 and maxConnections)
+	 */
+	public void setConnectionLimit(int aLimit){
+		List<NntpSocket> toClose = new ArrayList<>();
+		synchronized (this) {
+			connectionLimit = Math.max(1, Math.min(aLimit, maxConnections));
+			// the idle sockets over the limit are closed, those in use when they are released
+			while (!idleSockets.isEmpty() && idleSockets.size() + nbInUse > connectionLimit){
+				toClose.add(idleSockets.pollLast());
+			}
+			notifyAll();
+		}
+		for (NntpSocket socket : toClose){
+			closeSocket(socket, true);
+		}
+	}
+
+	public synchronized int getConnectionLimit(){return connectionLimit;}
+	public synchronized int getNbInUse()        {return nbInUse;}
+
+	public final int     getPriority()      {return priority;}
+	public final int     getMaxConnections(){return maxConnections;}
+	public final boolean isFillServer()     {return isFillServer;}
+	public final long    getNbRequests()    {return nbRequests.get();}
+	public final long    getNbStatRequests(){return nbStatRequests.get();}
+	public final long    getNbFound()       {return nbFound.get();}
+	public final long    getNbMissing()     {return nbMissing.get();}
+	public final long    getNbErrors()      {return nbErrors.get();}
+	public final long    getNbThrottled()   {return nbThrottled.get();}
+	public final long    getNbBytes()       {return nbBytes.get();}
+	public final long    getRequestNanos()  {return requestNanos.get();}
+
+
+	/** Display the statistics of the server
+	 *
+	 * @param outputStream Stream where to print them
+	 */
+	public void printStats(PrintStream outputStream){
+		outputStream.println(this
+				+": requests="   +nbRequests.get()
+				+", stats="      +nbStatRequests.get()
+				+", found="      +nbFound.get()
+				+", missing="    +nbMissing.get()
+				+", errors="     +nbErrors.get()
+				+", throttled="  +nbThrottled.get()
+				+", bytes="      +nbBytes.get()
+				+", connections="+getConnectionLimit()+"/"+maxConnections
+				+(isDown() ? " (down)" : "")
+				+", availability="+String.format("%.3f", getAvailability()));
+	}
+
+	@Override
+	public String toString(){
+		return host+":"+port+(isFillServer?" (fill)":"")+" [prio "+priority+"]";
+	}
+
+}
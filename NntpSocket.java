@@ -3,7 +3,9 @@ import java.nio.BufferUnderflowException;
 import java.lang.IllegalArgumentException;
 
 import java.nio.ByteBuffer;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.List;
 
 /**
  * NntpSocket implements method for the NNTP protocol unsing SocketASCII.
@@ -29,8 +31,10 @@ public class NntpSocket extends SocketASCII {
 	/** Every command sent to the Server should end with \r\n */
 	protected static final byte[]     endOfLine     = { CR, LF };
 
-	/** */
-	protected static final ByteBuffer endOfLineBuf  = ByteBuffer.wrap(endOfLine);
+	/** Buffer wrapping endOfLine
+	 *  (one per socket as its position moves when written, so several sockets can be used concurrently)
+	 */
+	protected final ByteBuffer        endOfLineBuf  = ByteBuffer.wrap(endOfLine);
 
 	/** Ending of a multi-line Message*/
 	protected static final byte       endMessage    = (byte) '.';
@@ -38,6 +42,21 @@ public class NntpSocket extends SocketASCII {
 	/** success response byte (first byte of the first line of any response from an Nntp Server) */
 	protected static final byte       successByte   = (byte) '2';    // First Digit of an answer is 2 if success
 
+	/** Response code of the server when the requested article doesn't exist */
+	public static final int           noSuchArticle = 430;
+
+	/** Response code of the server waiting for the article to post */
+	public static final int           sendArticle   = 340;
+
+	/** Response code of the server when the article has been posted */
+	public static final int           articlePosted = 240;
+
+	/** Response code of the server refusing the access (used by providers for too many connections) */
+	public static final int           accessDenied  = 502;
+
+	/** Response code of the server rejecting the authentication (also used for too many connections) */
+	public static final int           authRejected  = 481;
+
 
 	/** Contructor
 	 *
@@ -128,15 +147,7 @@ public class NntpSocket extends SocketASCII {
 	 */
 	public int doMultiLineCmd(String cmd, PrintStream outputStream) throws IOException, IllegalArgumentException {
 		// Write the command on the socket channel
-		ByteBuffer outBuff = ByteBuffer.wrap(cmd.getBytes(charsetEnc));
-
-		int nbWritten = 0;
-		nbWritten+=write(outBuff);
-
-		endOfLineBuf.clear();
-		nbWritten+=write(endOfLineBuf);
-
-		printCmd(cmd);
+		sendCmd(cmd);
 
 		initRead();
 		do{
@@ -165,6 +176,95 @@ public class NntpSocket extends SocketASCII {
 	public boolean doSingleLineCmd(String cmd, PrintStream outputStream) throws IOException, IllegalArgumentException {
 
 		// Write the command on the socket channel
+		sendCmd(cmd);
+
+		initRead();
+		boolean ok = readLine();
+		if (ok){
+			outputStream.write(buffer.array(), lineStart, lineEnd-lineStart);
+		}
+
+		return (buffer.array()[lineStart] == endMessage);
+	}
+
+
+	/** Do a command whose answer is an article (ARTICLE, HEAD or BODY)
+	 *  - the status line is not forwarded, only its code is returned
+	 *  - the lines of the article are written on the outputStream with their CRLF
+	 *    without the final .\r\n and with the dot-stuffing removed
+	 *
+	 * @param cmd          Command to send to the server
+	 * @param outputStream Stream where to write the article
+	 * @return the response code of the server (430 if the article doesn't exist)
+	 */
+	public int doArticleCmd(String cmd, OutputStream outputStream) throws IOException, IllegalArgumentException {
+		sendCmd(cmd);
+
+		initRead();
+		if (!readLine()){
+			return -1;
+		}
+
+		int code = getResponseCode();
+		if (buffer.array()[lineStart] != successByte){
+			return code;
+		}
+
+		byte[] buf = buffer.array();
+		while (readLine()){
+			if (buf[lineStart] == endMessage){
+				// End of the article
+				if (lineEnd-lineStart == 3){
+					return code;
+				}
+				// dot-stuffed line: we skip the first dot
+				outputStream.write(buf, lineStart+1, lineEnd-lineStart-1);
+			} else {
+				outputStream.write(buf, lineStart, lineEnd-lineStart);
+			}
+		}
+
+		// the connection was closed before the end of the article
+		throw new IOException("Article truncated: "+cmd);
+	}
+
+
+	/** Post an article (POST command)
+	 *  - the server should answer 340 to accept the article
+	 *  - the article is then sent as it is and the server should answer 240
+	 *
+	 * @param article headers, empty line and body of the article already dot-stuffed
+	 *                and ending with the line .\r\n
+	 * @return the response code of the server (240 if the article was posted)
+	 */
+	public int doPost(ByteBuffer article) throws IOException, IllegalArgumentException {
+		sendCmd("post");
+
+		initRead();
+		if (!readLine()){
+			return -1;
+		}
+		int code = getResponseCode();
+		if (code != sendArticle){
+			return code;
+		}
+
+		write(article);
+
+		initRead();
+		if (!readLine()){
+			return -1;
+		}
+		return getResponseCode();
+	}
+
+
+	/** Write a command on the socket channel followed by CRLF
+	 *
+	 * @param cmd Command to send to the server
+	 * @return the number of bytes written
+	 */
+	protected int sendCmd(String cmd) throws IOException {
 		ByteBuffer outBuff = ByteBuffer.wrap(cmd.getBytes(charsetEnc));
 
 		int nbWritten = 0;
@@ -173,16 +273,72 @@ public class NntpSocket extends SocketASCII {
 		endOfLineBuf.clear();
 		nbWritten+=write(endOfLineBuf);
 
-
 		printCmd(cmd);
 
-		initRead();
-		boolean ok = readLine();
-		if (ok){
-			outputStream.write(buffer.array(), lineStart, lineEnd-lineStart);
+		return nbWritten;
+	}
+
+
+	/** Write several commands on the socket channel in a single buffer
+	 *  (pipelining: the responses are then read with initRead and readResponseCode)
+	 *
+	 * @param cmds list of commands to send (without the CRLF)
+	 * @param from index of the first command to send
+	 * @param to   index after the last command to send
+	 * @return the number of bytes written
+	 */
+	public int sendPipelinedCmds(List<String> cmds, int from, int to) throws IOException {
+		byte[][] cmdBytes = new byte[to-from][];
+		int size = 0;
+		for (int i = from; i < to; ++i){
+			cmdBytes[i-from] = cmds.get(i).getBytes(charsetEnc);
+			size += cmdBytes[i-from].length + endOfLine.length;
 		}
 
-		return (buffer.array()[lineStart] == endMessage);
+		ByteBuffer outBuff = ByteBuffer.allocate(size);
+		for (int i = from; i < to; ++i){
+			outBuff.put(cmdBytes[i-from]);
+			outBuff.put(endOfLine);
+			printCmd(cmds.get(i));
+		}
+		outBuff.flip();
+
+		return write(outBuff);
+	}
+
+
+	/** Read the next single line response of a pipeline
+	 *  (initRead must be called before the first one)
+	 *
+	 * @return the response code or -1 if no line could be read
+	 */
+	public int readResponseCode() throws IOException, IllegalArgumentException {
+		if (!readLine()){
+			return -1;
+		}
+		return getResponseCode();
+	}
+
+
+	/** Parse the response code at the beginning of the current line
+	 *
+	 * @return the 3 digits response code or -1 if the line doesn't start with one
+	 */
+	public int getResponseCode(){
+		if (lineEnd-lineStart < 3){
+			return -1;
+		}
+
+		byte[] buf = buffer.array();
+		int code = 0;
+		for (int i = lineStart; i < lineStart+3; ++i){
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9){
+				return -1;
+			}
+			code = code*10 + digit;
+		}
+		return code;
 	}
 
 
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.IllegalArgumentException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NntpStatChecker checks the completeness of a post (NZB) before downloading it.
+ *
+ * It sends pipelined "STAT <message-id>" commands on all the connections of the servers
+ * and only parses the response codes (223: the article exists, 430: it is missing).
+ * - the segments missing on a server are checked on the next one (routing order of NntpRouter)
+ * - any other code (throttling, 4xx/5xx errors) isn't a missing segment: it's counted as an error
+ *   on the server and the segment is checked again on the next one
+ * - a segment no server has is reported missing if at least one of them answered 430
+ * - the check stops as soon as the percentage of segments missing on the last server
+ *   goes over the threshold
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class NntpStatChecker {
+
+	/** Number of STAT commands sent in advance on a connection */
+	public static int  iPipelineDepth   = 64;
+
+	/** Number of segments a connection takes at once from the list */
+	public static int  iChunkSize       = 512;
+
+	/** Status of a segment not checked yet */
+	protected static final byte unknown = 0;
+
+	/** Status of a segment present on a server */
+	protected static final byte present = 1;
+
+	/** Status of a segment missing on the servers checked so far */
+	protected static final byte missing = 2;
+
+	/** Status of a segment the servers answered with an error (none of them with 430) */
+	protected static final byte error   = 3;
+
+
+	/** Result of a check */
+	public static class Report {
+		/** name of the files in the order they were given */
+		public final List<String> fileNames;
+
+		/** number of segments of each file */
+		public final int[]   nbSegments;
+
+		/** number of missing segments of each file */
+		public final int[]   nbMissing;
+
+		/** number of segments not checked (early stop) */
+		public final int[]   nbUnchecked;
+
+		/** number of segments the servers answered with an error (neither 223 nor 430) */
+		public final int[]   nbErrors;
+
+		/** has the check been stopped because of the threshold */
+		public final boolean isAborted;
+
+		/** duration of the check */
+		public final long    durationMs;
+
+		Report(List<String> aFileNames, int nbFiles, boolean aIsAborted, long aDurationMs){
+			fileNames   = aFileNames;
+			nbSegments  = new int[nbFiles];
+			nbMissing   = new int[nbFiles];
+			nbUnchecked = new int[nbFiles];
+			nbErrors    = new int[nbFiles];
+			isAborted   = aIsAborted;
+			durationMs  = aDurationMs;
+		}
+
+		/** @return the total number of missing segments found */
+		public int getTotalMissing(){
+			int total = 0;
+			for (int n : nbMissing){ total += n; }
+			return total;
+		}
+
+		/** @return the files that have at least one missing segment */
+		public List<String> getIncompleteFiles(){
+			List<String> incomplete = new ArrayList<>();
+			for (int i = 0; i < nbMissing.length; ++i){
+				if (nbMissing[i] > 0){
+					incomplete.add(fileNames.get(i));
+				}
+			}
+			return incomplete;
+		}
+
+		/** Display the report
+		 *
+		 * @param outputStream Stream where to print it
+		 */
+		public void print(PrintStream outputStream){
+			int total = 0;
+			for (int i = 0; i < nbSegments.length; ++i){
+				total += nbSegments[i];
+				if (nbMissing[i] > 0 || nbUnchecked[i] > 0 || nbErrors[i] > 0){
+					outputStream.println("- "+fileNames.get(i)+": "+nbMissing[i]+"/"+nbSegments[i]+" missing"
+							+(nbUnchecked[i] > 0 ? ", "+nbUnchecked[i]+" not checked" : "")
+							+(nbErrors[i] > 0 ? ", "+nbErrors[i]+" errors" : ""));
+				}
+			}
+			outputStream.println((isAborted ? "[ABORTED] " : "")
+					+getTotalMissing()+"/"+total+" segments missing, "
+					+getIncompleteFiles().size()+"/"+nbSegments.length+" files incomplete"
+					+" (checked in "+durationMs+" ms)");
+		}
+	}
+
+
+	/** Servers to check in the order they are used */
+	private final List<NntpServer> iServers;
+
+	/** Percentage of missing segments over which we stop the check */
+	private final double iMaxMissingPercent;
+
+
+	/** Contructor
+	 *
+	 * @param aRouter            the servers are checked in its routing order
+	 * @param aMaxMissingPercent percentage (0-100) of missing segments over which we stop
+	 */
+	public NntpStatChecker(NntpRouter aRouter, double aMaxMissingPercent){
+		iServers           = aRouter.getRoutingOrder();
+		iMaxMissingPercent = aMaxMissingPercent;
+	}
+
+
+	/** Check the segments of a post
+	 *
+	 * @param files message ids of the segments of each file (in the order of the files)
+	 * @return the report of the check
+	 */
+	public Report check(LinkedHashMap<String, List<String>> files) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		// Flatten all the segments
+		List<String> fileNames  = new ArrayList<>(files.keySet());
+		List<String> messageIds = new ArrayList<>();
+		List<Integer> fileIdx   = new ArrayList<>();
+		int idx = 0;
+		for (Map.Entry<String, List<String>> file : files.entrySet()){
+			for (String messageId : file.getValue()){
+				messageIds.add(messageId);
+				fileIdx.add(idx);
+			}
+			++idx;
+		}
+
+		int nbTotal = messageIds.size();
+		int maxMissing = (int) Math.floor(nbTotal * iMaxMissingPercent / 100.);
+
+		byte[] status = new byte[nbTotal];
+		AtomicBoolean isAborted = new AtomicBoolean(false);
+
+		// Each server only checks the segments missing on the previous ones
+		int[] toCheck = new int[nbTotal];
+		for (int i = 0; i < nbTotal; ++i){
+			toCheck[i] = i;
+		}
+		int nbToCheck = nbTotal;
+		for (int s = 0; s < iServers.size(); ++s){
+			if (nbToCheck == 0 || isAborted.get()){
+				break;
+			}
+			// a segment is only missing if the last server doesn't have it either
+			boolean isLast = (s == iServers.size() - 1);
+			checkOnServer(iServers.get(s), messageIds, toCheck, nbToCheck, status,
+					isLast ? maxMissing : Integer.MAX_VALUE, isAborted);
+
+			// what is missing, in error or couldn't be checked goes to the next server
+			int nbLeft = 0;
+			for (int i = 0; i < nbToCheck; ++i){
+				if (status[toCheck[i]] != present){
+					toCheck[nbLeft++] = toCheck[i];
+				}
+			}
+			nbToCheck = nbLeft;
+		}
+
+		Report report = new Report(fileNames, fileNames.size(), isAborted.get(), System.currentTimeMillis() - start);
+		for (int i = 0; i < nbTotal; ++i){
+			int f = fileIdx.get(i);
+			++report.nbSegments[f];
+			if (status[i] == missing){
+				++report.nbMissing[f];
+			} else if (status[i] == unknown){
+				++report.nbUnchecked[f];
+			} else if (status[i] == error){
+				++report.nbErrors[f];
+			}
+		}
+		return report;
+	}
+
+
+	/** Check a list of segments on all the connections of a server
+	 *
+	 * @param server     the server
+	 * @param messageIds all the segments
+	 * @param toCheck    indexes of the segments to check
+	 * @param nbToCheck  number of indexes in toCheck
+	 * @param status     status of the segments (updated)
+	 * @param maxMissing number of missing segments over which we stop
+	 * @param isAborted  set when maxMissing is exceeded
+	 */
+	protected void checkOnServer(NntpServer server, List<String> messageIds, int[] toCheck, int nbToCheck,
+			byte[] status, int maxMissing, AtomicBoolean isAborted) throws InterruptedException {
+
+		// toCheck holds all the segments not found on the previous servers
+		// (their status is kept when this one can't tell: a 430 before an error stays missing)
+		AtomicInteger nbMissing = new AtomicInteger();
+
+		AtomicInteger next = new AtomicInteger();
+		int nbThreads = Math.min(server.getConnectionLimit(), (nbToCheck + iChunkSize - 1) / iChunkSize);
+		Thread[] threads = new Thread[nbThreads];
+		for (int t = 0; t < nbThreads; ++t){
+			threads[t] = new Thread(() -> {
+				NntpSocket sock;
+				try {
+					sock = server.acquire();
+				} catch (InterruptedException e){
+					return;
+				}
+				if (sock == null){
+					return;
+				}
+
+				boolean usable = true;
+				try {
+					int from;
+					while (!isAborted.get() && (from = next.getAndAdd(iChunkSize)) < nbToCheck){
+						int to = Math.min(from + iChunkSize, nbToCheck);
+						checkChunk(server, sock, messageIds, toCheck, from, to, status, nbMissing, maxMissing, isAborted);
+					}
+				} catch (IOException|IllegalArgumentException e){
+					sock.debug("NntpStatChecker::checkOnServer", "Error checking on "+server, e);
+					usable = false;
+				}
+				server.release(sock, usable);
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads){
+			thread.join();
+		}
+	}
+
+
+	/** Check a chunk of segments on a connection
+	 *  Keeps iPipelineDepth STAT commands in flight
+	 *  (all the responses of the commands sent are read even if we abort)
+	 *  Only 430 counts as missing, the other codes are errors recorded on the server
+	 */
+	protected void checkChunk(NntpServer server, NntpSocket sock, List<String> messageIds, int[] toCheck, int from, int to,
+			byte[] status, AtomicInteger nbMissing, int maxMissing, AtomicBoolean isAborted)
+					throws IOException, IllegalArgumentException {
+
+		int nb = to - from;
+		List<String> cmds = new ArrayList<>(nb);
+		for (int i = from; i < to; ++i){
+			cmds.add("stat "+NntpRouter.formatMessageId(messageIds.get(toCheck[i])));
+		}
+
+		int depth    = Math.max(2, iPipelineDepth);
+		int nbSent   = Math.min(depth, nb);
+		sock.sendPipelinedCmds(cmds, 0, nbSent);
+
+		sock.initRead();
+		for (int nbRead = 0; nbRead < nbSent; ++nbRead){
+			int code = sock.readResponseCode();
+			if (code == -1){
+				throw new IOException("Connection closed during the STAT pipeline");
+			}
+
+			int segment = toCheck[from + nbRead];
+			server.addStatResult(code);
+			if (code == 223){
+				status[segment] = present;
+			} else if (code == NntpSocket.noSuchArticle){
+				status[segment] = missing;
+				if (nbMissing.incrementAndGet() > maxMissing){
+					isAborted.set(true);
+				}
+			} else if (status[segment] != missing){
+				// throttling or temporary error: we don't know, the next server checks it
+				status[segment] = error;
+			}
+
+			// refill the pipeline when half of it has been answered
+			if (!isAborted.get() && nbSent < nb && nbSent - nbRead - 1 <= depth / 2){
+				int nbNext = Math.min(depth - (nbSent - nbRead - 1), nb - nbSent);
+				sock.sendPipelinedCmds(cmds, nbSent, nbSent + nbNext);
+				nbSent += nbNext;
+			}
+		}
+	}
+
+
+
+	/** Example on how to use it*/
+	public static void main(String args[]) throws Exception {
+		SocketASCII.isDebug   = false;
+		NntpSocket.isPrintCmd = false;
+
+		NntpRouter router = new NntpRouter();
+		router.addServer(new NntpServer("news.primary.com", 119, "myUsername", "myPassword", 0, 20, false, 1024));
+		router.addServer(new NntpServer("news.fill.com",    119, "myUsername", "myPassword", 0,  4, true,  1024));
+
+		// file name followed by its message ids: file1 id1 id2 ... -- file2 id1 ...
+		LinkedHashMap<String, List<String>> files = new LinkedHashMap<>();
+		List<String> segments = null;
+		for (String arg : args){
+			if (segments == null){
+				segments = new ArrayList<>();
+				files.put(arg, segments);
+			} else if (arg.equals("--")){
+				segments = null;
+			} else {
+				segments.add(arg);
+			}
+		}
+
+		NntpStatChecker checker = new NntpStatChecker(router, 5.);
+		checker.check(files).print(System.out);
+		router.close();
+	}
+
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Par2File reads the verification packets of a PAR2 recovery set:
+ * - Main packet: slice size
+ * - File Description packets: name and length of each file
+ * - Input File Slice Checksum packets: MD5 and CRC32 of each slice of a file
+ *   (the last slice being padded with zeros)
+ *
+ * The recovery packets are skipped without being read.
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class Par2File {
+
+	/** Magic sequence at the beginning of each packet */
+	protected static final byte[] packetMagic = "PAR2\0PKT".getBytes(StandardCharsets.ISO_8859_1);
+
+	/** Size of the header of a packet */
+	protected static final int headerSize = 64;
+
+	protected static final String typeMain     = "PAR 2.0\0Main\0\0\0\0";
+	protected static final String typeFileDesc = "PAR 2.0\0FileDesc";
+	protected static final String typeIFSC     = "PAR 2.0\0IFSC\0\0\0\0";
+
+
+	/** Description of a file protected by the recovery set */
+	public static class FileEntry {
+		public String   name;
+		public long     length;
+		public byte[][] sliceMd5;   // expected MD5 of each slice
+		public int[]    sliceCrc;   // expected CRC32 of each slice
+
+		/** @param sliceSize slice size of the recovery set
+		 *  @return the number of slices of the file */
+		public int getNbSlices(long sliceSize){
+			return (int) ((length + sliceSize - 1) / sliceSize);
+		}
+	}
+
+
+	/** Size of the slices */
+	private long iSliceSize;
+
+	/** Files indexed by their file id (hex) */
+	private final Map<String, FileEntry> iFilesById;
+
+	/** Files indexed by their name */
+	private final Map<String, FileEntry> iFilesByName;
+
+
+	/** Contructor */
+	public Par2File(){
+		iSliceSize   = 0;
+		iFilesById   = new HashMap<>();
+		iFilesByName = new HashMap<>();
+	}
+
+
+	/** Read the packets of a .par2 file (can be called for each file of the set)
+	 *
+	 * @param path the .par2 file
+	 */
+	public void read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			long pos  = 0;
+			long size = channel.size();
+			while (pos + headerSize <= size){
+				header.clear();
+				readFully(channel, header, pos);
+				header.flip();
+
+				byte[] magic = new byte[packetMagic.length];
+				header.get(magic);
+				if (!Arrays.equals(magic, packetMagic)){
+					// corrupted packet: look for the next one
+					pos += 4;
+					continue;
+				}
+				long length = header.getLong(8);
+				if (length < headerSize || pos + length > size){
+					pos += 4;
+					continue;
+				}
+				String type = new String(header.array(), 48, 16, StandardCharsets.ISO_8859_1);
+
+				if (type.equals(typeMain) || type.equals(typeFileDesc) || type.equals(typeIFSC)){
+					ByteBuffer body = ByteBuffer.allocate((int) (length - headerSize)).order(ByteOrder.LITTLE_ENDIAN);
+					readFully(channel, body, pos + headerSize);
+					body.flip();
+					readPacket(type, body);
+				}
+				pos += length;
+			}
+		}
+	}
+
+
+	/** Read the body of a packet
+	 *
+	 * @param type type of the packet
+	 * @param body body of the packet (little endian)
+	 */
+	protected void readPacket(String type, ByteBuffer body){
+		if (type.equals(typeMain)){
+			iSliceSize = body.getLong();
+			return;
+		}
+
+		FileEntry file = getOrCreate(readFileId(body));
+		if (type.equals(typeFileDesc)){
+			body.position(body.position() + 32); // MD5 of the file and of its first 16k
+			file.length = body.getLong();
+			byte[] name = new byte[body.remaining()];
+			body.get(name);
+			int len = name.length;
+			while (len > 0 && name[len-1] == 0){ --len; }
+			file.name = new String(name, 0, len, StandardCharsets.UTF_8);
+			iFilesByName.put(file.name, file);
+		} else {
+			int nbSlices = body.remaining() / 20;
+			file.sliceMd5 = new byte[nbSlices][16];
+			file.sliceCrc = new int[nbSlices];
+			for (int i = 0; i < nbSlices; ++i){
+				body.get(file.sliceMd5[i]);
+				file.sliceCrc[i] = body.getInt();
+			}
+		}
+	}
+
+
+	/** Read a file id (16 bytes) as an hexadecimal string */
+	private static String readFileId(ByteBuffer body){
+		StringBuilder id = new StringBuilder(32);
+		for (int i = 0; i < 16; ++i){
+			id.append(String.format("%02x", body.get()));
+		}
+		return id.toString();
+	}
+
+	private FileEntry getOrCreate(String fileId){
+		return iFilesById.computeIfAbsent(fileId, id -> new FileEntry());
+	}
+
+	/** Read until the buffer is full */
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()){
+			int nbRead = channel.read(buf, pos);
+			if (nbRead < 0){
+				throw new IOException("Unexpected end of PAR2 file");
+			}
+			pos += nbRead;
+		}
+	}
+
+
+	/** @return the size of the slices */
+	public long getSliceSize(){ return iSliceSize; }
+
+	/** @param name name of a file
+	 *  @return its description or null if it isn't in the recovery set */
+	public FileEntry getFile(String name){ return iFilesByName.get(name); }
+
+	/** @return all the files described in the recovery set */
+	public Collection<FileEntry> getFiles(){ return iFilesByName.values(); }
+
+}
@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Par2StreamVerifier computes the PAR2 slice checksums (MD5 and CRC32) while the
+ * parts of the files are downloaded, so the verification is done when the last one arrives
+ * and the files don't have to be read again from the disk.
+ *
+ * It is a YEnc.PartListener: plug it on the YEnc.Decoder of the downloaded articles.
+ * - the bytes arriving in order in a slice are hashed straight away
+ * - the ones arriving before their turn are kept until the gap is filled
+ * - a part whose yEnc CRC32 is wrong marks the slices it covers as damaged without hashing them
+ * - each slice has its own lock, so the parts decoded by the different connections
+ *   are hashed in parallel on all the cores
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class Par2StreamVerifier implements YEnc.PartListener {
+
+	/** Zeros used to pad the last slice of a file */
+	protected static final byte[] zeros = new byte[64 * 1024];
+
+	/** Status of a slice */
+	public enum SliceStatus { MISSING, OK, DAMAGED }
+
+
+	/** Hashing state of a slice */
+	private static class SliceState {
+		MessageDigest       md5;
+		CRC32               crc;
+		long                next;     // next offset of the file to hash
+		TreeMap<Long, byte[]> pending; // parts of the slice received before their turn
+		SliceStatus         status = SliceStatus.MISSING;
+	}
+
+	/** Verification state of a file */
+	private static class FileState {
+		final Par2File.FileEntry entry;
+		final SliceState[]       slices;
+
+		FileState(Par2File.FileEntry aEntry, int nbSlices){
+			entry  = aEntry;
+			slices = new SliceState[nbSlices];
+			for (int i = 0; i < nbSlices; ++i){
+				slices[i] = new SliceState();
+			}
+		}
+	}
+
+
+	/** Verification packets of the recovery set */
+	private final Par2File iPar2;
+
+	/** Size of the slices */
+	private final long iSliceSize;
+
+	/** State of the files being verified */
+	private final Map<String, FileState> iFiles;
+
+
+	/** Contructor
+	 *
+	 * @param aPar2 verification packets of the recovery set
+	 */
+	public Par2StreamVerifier(Par2File aPar2){
+		iPar2      = aPar2;
+		iSliceSize = aPar2.getSliceSize();
+		iFiles     = new ConcurrentHashMap<>();
+		if (iSliceSize <= 0){
+			throw new IllegalArgumentException("No PAR2 main packet (slice size unknown)");
+		}
+	}
+
+
+	@Override
+	public void onPart(String name, long fileSize, long offset, byte[] data, int len, boolean isCrcOk){
+		FileState file = getFileState(name);
+		if (file == null){
+			return; // not protected by the recovery set
+		}
+
+		long end = Math.min(offset + len, file.entry.length);
+		for (long pos = offset; pos < end; ){
+			int  idx      = (int) (pos / iSliceSize);
+			long sliceEnd = Math.min((idx + 1) * iSliceSize, file.entry.length);
+			long chunkEnd = Math.min(sliceEnd, end);
+
+			if (isCrcOk){
+				addToSlice(file, idx, pos, data, (int) (pos - offset), (int) (chunkEnd - pos));
+			} else {
+				setDamaged(file.slices[idx]);
+			}
+			pos = chunkEnd;
+		}
+	}
+
+
+	/** Get the state of a file (created at its first part)
+	 *
+	 * @param name name of the file
+	 * @return its state or null if it isn't in the recovery set
+	 */
+	private FileState getFileState(String name){
+		FileState file = iFiles.get(name);
+		if (file != null){
+			return file;
+		}
+
+		Par2File.FileEntry entry = iPar2.getFile(name);
+		if (entry == null || entry.sliceMd5 == null){
+			return null;
+		}
+		return iFiles.computeIfAbsent(name, n -> new FileState(entry, entry.getNbSlices(iSliceSize)));
+	}
+
+
+	/** Hash a chunk of a slice (or keep it if the previous bytes aren't there yet)
+	 *
+	 * @param file      state of the file
+	 * @param idx       index of the slice
+	 * @param filePos   position of the chunk in the file
+	 * @param data      buffer of the chunk
+	 * @param off       offset of the chunk in the buffer
+	 * @param len       length of the chunk
+	 */
+	private void addToSlice(FileState file, int idx, long filePos, byte[] data, int off, int len){
+		SliceState slice = file.slices[idx];
+		long sliceStart = idx * iSliceSize;
+		long sliceEnd   = Math.min(sliceStart + iSliceSize, file.entry.length);
+
+		synchronized (slice) {
+			if (slice.status != SliceStatus.MISSING){
+				return; // already verified (duplicate part)
+			}
+			if (slice.md5 == null){
+				slice.md5     = newMd5();
+				slice.crc     = new CRC32();
+				slice.next    = sliceStart;
+				slice.pending = new TreeMap<>();
+			}
+
+			if (filePos > slice.next){
+				// we'll hash it when the gap is filled
+				slice.pending.put(filePos, Arrays.copyOfRange(data, off, off + len));
+				return;
+			}
+			if (filePos + len <= slice.next){
+				return; // already hashed
+			}
+
+			// skip what has already been hashed
+			int skip = (int) (slice.next - filePos);
+			hash(slice, data, off + skip, len - skip);
+
+			// and the pending parts that follow
+			Map.Entry<Long, byte[]> first;
+			while ((first = slice.pending.firstEntry()) != null && first.getKey() <= slice.next){
+				slice.pending.pollFirstEntry();
+				byte[] chunk = first.getValue();
+				long chunkEnd = first.getKey() + chunk.length;
+				if (chunkEnd > slice.next){
+					int from = (int) (slice.next - first.getKey());
+					hash(slice, chunk, from, chunk.length - from);
+				}
+			}
+
+			if (slice.next == sliceEnd){
+				finishSlice(file, idx, slice, sliceEnd - sliceStart);
+			}
+		}
+	}
+
+
+	/** Mark a slice as damaged and drop what has been hashed or kept for it
+	 *
+	 * @param slice state of the slice
+	 */
+	private static void setDamaged(SliceState slice){
+		synchronized (slice) {
+			slice.status  = SliceStatus.DAMAGED;
+			slice.md5     = null;
+			slice.crc     = null;
+			slice.pending = null;
+		}
+	}
+
+
+	/** Update the checksums of a slice */
+	private static void hash(SliceState slice, byte[] data, int off, int len){
+		slice.md5.update(data, off, len);
+		slice.crc.update(data, off, len);
+		slice.next += len;
+	}
+
+
+	/** Pad the slice and compare its checksums with the expected ones
+	 *
+	 * @param file  state of the file
+	 * @param idx   index of the slice
+	 * @param slice state of the slice
+	 * @param len   length of the slice in the file
+	 */
+	private void finishSlice(FileState file, int idx, SliceState slice, long len){
+		// the last slice is padded with zeros
+		long padding = iSliceSize - len;
+		while (padding > 0){
+			int n = (int) Math.min(padding, zeros.length);
+			slice.md5.update(zeros, 0, n);
+			slice.crc.update(zeros, 0, n);
+			padding -= n;
+		}
+
+		boolean isOk = Arrays.equals(slice.md5.digest(), file.entry.sliceMd5[idx])
+				&& ((int) slice.crc.getValue() == file.entry.sliceCrc[idx]);
+		slice.status  = isOk ? SliceStatus.OK : SliceStatus.DAMAGED;
+		slice.md5     = null;
+		slice.crc     = null;
+		slice.pending = null;
+	}
+
+
+	/** @return a new MD5 digest */
+	private static MessageDigest newMd5(){
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+
+
+	/** Slices that need to be repaired (damaged or never received)
+	 *
+	 * @param name name of the file
+	 * @return indexes of the slices to repair
+	 */
+	public List<Integer> getSlicesToRepair(String name){
+		Par2File.FileEntry entry = iPar2.getFile(name);
+		List<Integer> toRepair = new ArrayList<>();
+		if (entry == null){
+			return toRepair;
+		}
+
+		FileState file = iFiles.get(name);
+		int nbSlices = entry.getNbSlices(iSliceSize);
+		for (int i = 0; i < nbSlices; ++i){
+			if (file == null || getStatus(file.slices[i]) != SliceStatus.OK){
+				toRepair.add(i);
+			}
+		}
+		return toRepair;
+	}
+
+
+	private static SliceStatus getStatus(SliceState slice){
+		synchronized (slice) {
+			return slice.status;
+		}
+	}
+
+
+	/** @return true if all the slices of all the files of the recovery set are OK */
+	public boolean isComplete(){
+		for (Par2File.FileEntry entry : iPar2.getFiles()){
+			if (!getSlicesToRepair(entry.name).isEmpty()){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/** Display the verification report
+	 *
+	 * @param outputStream Stream where to print it
+	 */
+	public void printReport(PrintStream outputStream){
+		int nbSlicesToRepair = 0;
+		for (Par2File.FileEntry entry : iPar2.getFiles()){
+			int nbSlices = entry.getNbSlices(iSliceSize);
+			FileState file = iFiles.get(entry.name);
+			int nbOk = 0, nbDamaged = 0;
+			for (int i = 0; file != null && i < nbSlices; ++i){
+				SliceStatus status = getStatus(file.slices[i]);
+				if (status == SliceStatus.OK){
+					++nbOk;
+				} else if (status == SliceStatus.DAMAGED){
+					++nbDamaged;
+				}
+			}
+			int nbMissing = nbSlices - nbOk - nbDamaged;
+			nbSlicesToRepair += nbDamaged + nbMissing;
+			outputStream.println("- "+entry.name+": "
+					+(nbOk == nbSlices ? "OK" : nbDamaged+" damaged, "+nbMissing+" missing")
+					+" ("+nbSlices+" slices)");
+		}
+		outputStream.println(nbSlicesToRepair == 0 ? "All files are correct"
+				: nbSlicesToRepair+" slices need to be repaired");
+	}
+
+
+
+	/** Example on how to use it: java Par2StreamVerifier set.par2 messageId1 messageId2 ... */
+	public static void main(String args[]) throws Exception {
+		SocketASCII.isDebug   = false;
+		NntpSocket.isPrintCmd = false;
+
+		Par2File par2 = new Par2File();
+		par2.read(Paths.get(args[0]));
+		Par2StreamVerifier verifier = new Par2StreamVerifier(par2);
+
+		NntpRouter router = new NntpRouter();
+		router.addServer(new NntpServer("news.primary.com", 119, "myUsername", "myPassword", 0, 20, false, 1024));
+
+		List<String> messageIds = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+		router.fetchArticles(messageIds, new NntpRouter.ArticleHandler() {
+			public void onArticle(String messageId, byte[] article, int length){
+				try {
+					new YEnc.Decoder(verifier).write(article, 0, length);
+				} catch (IOException e){
+					System.err.println("Error decoding "+messageId+": "+e);
+				}
+			}
+			public void onMissing(String messageId, int code){
+				System.err.println("Missing "+messageId+" (code "+code+")");
+			}
+		});
+
+		// the verification is already done
+		verifier.printReport(System.out);
+		router.close();
+	}
+
+}
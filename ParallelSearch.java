@@ -0,0 +1,191 @@
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelSearch searches an ArrayPattern in a very large haystack on several cores.
+ *
+ * - the haystack is split in two until the chunks are smaller than iThreshold
+ *   (below it the search is sequential: forking would cost more than it saves)
+ * - a chunk is the positions where a match can start: it's searched up to needle.length - 1
+ *   elements after its end so the matches across the boundaries are found once
+ * - indexOf: the leftmost match found so far is shared by the tasks, the chunks after it
+ *   aren't searched anymore and the left chunk wins when both have a match
+ * - findAll: each chunk returns its positions in order and they are concatenated
+ *
+ * Any ArrayPattern (byte[], char[], int[], long[], Object[]) can be searched.
+ * The tasks run on the common pool by default or on the given pool (cf CompressLibrary that shares one).
+ */
+public class ParallelSearch {
+
+	/** Size of the chunks searched by a single task (in elements) */
+	public static int iThreshold = 1 << 18;
+
+
+	/** @return the position of the pattern in the haystack or -1 */
+	public static <A> int indexOf(ArrayPattern<A> pattern, A haystack){
+		return indexOf(pattern, haystack, 0, pattern.length(haystack), ForkJoinPool.commonPool());
+	}
+
+	/** Give the position of the pattern in haystack[from...to-1]
+	 *
+	 * @param pool pool running the tasks
+	 * @return the position in the haystack (not relative to from) or -1
+	 */
+	public static <A> int indexOf(ArrayPattern<A> pattern, A haystack, int from, int to, ForkJoinPool pool){
+		Objects.checkFromToIndex(from, to, pattern.length(haystack));
+		if (to - from <= iThreshold){
+			return pattern.indexOf(haystack, from, to);
+		}
+		AtomicInteger leftmost = new AtomicInteger(Integer.MAX_VALUE);
+		return pool.invoke(new FirstTask<>(pattern, haystack, from, to - pattern.length() + 1, to, leftmost));
+	}
+
+
+	/** @return all the positions (overlapping) of the pattern in the haystack */
+	public static <A> int[] findAll(ArrayPattern<A> pattern, A haystack){
+		return findAll(pattern, haystack, 0, pattern.length(haystack), ForkJoinPool.commonPool());
+	}
+
+	/** Give all the positions (overlapping) of the pattern in haystack[from...to-1]
+	 *
+	 * @param pool pool running the tasks
+	 * @return the positions in the haystack in increasing order
+	 */
+	public static <A> int[] findAll(ArrayPattern<A> pattern, A haystack, int from, int to, ForkJoinPool pool){
+		Objects.checkFromToIndex(from, to, pattern.length(haystack));
+		if (pattern.length() == 0){
+			throw new IllegalArgumentException("Empty needle");
+		}
+		AllTask<A> task = new AllTask<>(pattern, haystack, from, to - pattern.length() + 1, to);
+		return (to - from <= iThreshold) ? task.compute() : pool.invoke(task);
+	}
+
+
+	/** Search of the first match starting in [iFrom, iTo) */
+	private static class FirstTask<A> extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayPattern<A> iPattern;
+		private final A               iHaystack;
+		private final int             iFrom, iTo, iEnd;
+		private final AtomicInteger   iLeftmost;
+
+		FirstTask(ArrayPattern<A> aPattern, A aHaystack, int aFrom, int aTo, int aEnd, AtomicInteger aLeftmost){
+			iPattern  = aPattern;
+			iHaystack = aHaystack;
+			iFrom     = aFrom;
+			iTo       = aTo;
+			iEnd      = aEnd;
+			iLeftmost = aLeftmost;
+		}
+
+		@Override
+		protected Integer compute(){
+			if (iFrom >= iTo || iFrom > iLeftmost.get()){
+				return -1; // empty or a match has already been found before
+			}
+			if (iTo - iFrom <= iThreshold){
+				int pos = iPattern.indexOf(iHaystack, iFrom, Math.min(iEnd, iTo + iPattern.length() - 1));
+				if (pos >= 0){
+					iLeftmost.accumulateAndGet(pos, Math::min);
+				}
+				return pos;
+			}
+			int middle = (iFrom + iTo) >>> 1;
+			FirstTask<A> right = new FirstTask<>(iPattern, iHaystack, middle, iTo, iEnd, iLeftmost);
+			right.fork();
+			int pos = new FirstTask<>(iPattern, iHaystack, iFrom, middle, iEnd, iLeftmost).compute();
+			if (pos >= 0){
+				// the right one stops at once if it hasn't started
+				right.join();
+				return pos;
+			}
+			return right.join();
+		}
+	}
+
+
+	/** Search of all the matches starting in [iFrom, iTo) */
+	private static class AllTask<A> extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayPattern<A> iPattern;
+		private final A               iHaystack;
+		private final int             iFrom, iTo, iEnd;
+
+		AllTask(ArrayPattern<A> aPattern, A aHaystack, int aFrom, int aTo, int aEnd){
+			iPattern  = aPattern;
+			iHaystack = aHaystack;
+			iFrom     = aFrom;
+			iTo       = aTo;
+			iEnd      = aEnd;
+		}
+
+		@Override
+		protected int[] compute(){
+			if (iTo - iFrom <= iThreshold){
+				int[] positions = new int[8];
+				int nbPositions = 0;
+				int end = Math.min(iEnd, iTo + iPattern.length() - 1);
+				for (int pos = (iFrom < iTo) ? iPattern.indexOf(iHaystack, iFrom, end) : -1; pos >= 0;
+						pos = (pos + 1 < iTo) ? iPattern.indexOf(iHaystack, pos + 1, end) : -1){
+					if (nbPositions == positions.length){
+						positions = Arrays.copyOf(positions, 2 * nbPositions);
+					}
+					positions[nbPositions++] = pos;
+				}
+				return Arrays.copyOf(positions, nbPositions);
+			}
+			int middle = (iFrom + iTo) >>> 1;
+			AllTask<A> right = new AllTask<>(iPattern, iHaystack, middle, iTo, iEnd);
+			right.fork();
+			int[] leftPositions  = new AllTask<>(iPattern, iHaystack, iFrom, middle, iEnd).compute();
+			int[] rightPositions = right.join();
+			int[] positions = Arrays.copyOf(leftPositions, leftPositions.length + rightPositions.length);
+			System.arraycopy(rightPositions, 0, positions, leftPositions.length, rightPositions.length);
+			return positions;
+		}
+	}
+
+
+	/** Compare the sequential and parallel searches on a large haystack */
+	public static void main(String[] args){
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 27;
+		java.util.Random random = new java.util.Random(42);
+		byte[] haystack = new byte[size];
+		for (int i = 0; i < size; ++i)
+			haystack[i] = (byte) ('a' + random.nextInt(4));
+		byte[] needle = "abcdabcdabcddcba".getBytes();
+		System.arraycopy(needle, 0, haystack, size - 1000, needle.length);
+		ArrayPattern.OfBytes pattern = ArrayPattern.compile(needle);
+		System.out.println(pattern+" in "+size / (1024 * 1024)+" MB on "+ForkJoinPool.commonPool().getParallelism()+" threads");
+
+		for (int i = 0; i < 3; ++i){
+			long start = System.nanoTime();
+			int sequential = pattern.indexOf(haystack);
+			long sequentialNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			int parallel = indexOf(pattern, haystack);
+			long parallelNanos = System.nanoTime() - start;
+			System.out.println("indexOf: "+sequential+" in "+sequentialNanos / 1000000+" ms, parallel "+parallel+" in "+parallelNanos / 1000000+" ms");
+		}
+
+		byte[] shortNeedle = "abca".getBytes();
+		ArrayPattern.OfBytes shortPattern = ArrayPattern.compile(shortNeedle);
+		for (int threshold : new int[]{1 << 14, 1 << 16, 1 << 18, 1 << 20}){
+			iThreshold = threshold;
+			long start = System.nanoTime();
+			int[] all = findAll(shortPattern, haystack);
+			System.out.println("findAll with chunks of "+threshold+": "+all.length+" in "+(System.nanoTime() - start) / 1000000+" ms");
+		}
+		long start = System.nanoTime();
+		int nb = 0;
+		for (int pos = shortPattern.indexOf(haystack); pos >= 0; pos = shortPattern.indexOf(haystack, pos + 1, size))
+			++nb;
+		System.out.println("findAll sequential: "+nb+" in "+(System.nanoTime() - start) / 1000000+" ms");
+	}
+
+}
@@ -141,6 +141,15 @@ public class SocketASCII{
 	}
 
 
+	/** Is the socket channel open and connected
+	 *
+	 * @return true if we can use the socket
+	 */
+	public boolean isConnected(){
+		return (channel != null) && channel.isConnected();
+	}
+
+
 	/** return the total number of byte read on the socket
 	 *
 	 * @return total number of byte read on the socket channel
@@ -285,10 +294,13 @@ public class SocketASCII{
 	public int write(ByteBuffer outBuff) throws IOException{
 		int nbWritten = 0;
 		while ( outBuff.hasRemaining() ){
-			debug("SocketASCII::write", "writting buffer: "+
-					", outBuff, pos: "+outBuff.position()+
-					", limit: "+outBuff.limit()+
-					"remaining: "+outBuff.remaining());
+			// don't build the debug string for nothing (called for each article posted)
+			if (isDebug){
+				debug("SocketASCII::write", "writting buffer: "+
+						", outBuff, pos: "+outBuff.position()+
+						", limit: "+outBuff.limit()+
+						"remaining: "+outBuff.remaining());
+			}
 			nbWritten+=channel.write(outBuff);
 		}
 
@@ -298,7 +310,7 @@ public class SocketASCII{
 
 	/** Close the socket channel */
 	public void close() {
-		if ( channel.isConnected() ) {
+		if ( isConnected() ) {
 			try {
 				channel.close();
 			} catch (IOException e){
@@ -0,0 +1,207 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * StreamSearch finds a byte needle in a stream that doesn't fit in memory:
+ * a ReadableByteChannel (socket, file...) or a file mapped region by region.
+ *
+ * The stream is given chunk by chunk (ByteBuffer) and the state of the search is kept
+ * between them (Knuth-Morris-Pratt: the number of bytes of the needle matched so far),
+ * so a needle across two chunks is found without copying anything.
+ * The positions are absolute (from the first byte given since the last reset) and
+ * the memory used doesn't depend on the size of the stream: the needle, its KMP table and a buffer.
+ *
+ * Example: the end of an article (\r\n.\r\n) or the =ybegin lines of yEnc in what NntpSocket receives.
+ */
+public class StreamSearch {
+
+	/** Size of the buffer used to read a channel */
+	public static int  iBufferSize = 64 * 1024;
+
+	/** Size of the regions of a file mapped at a time */
+	public static long iMapSize    = 256L * 1024 * 1024;
+
+
+	/** The needle */
+	private final byte[] iNeedle;
+
+	/** KMP: length of the longest proper border of iNeedle[0...i] */
+	private final int[]  iNext;
+
+	/** Number of bytes of the needle matched at the end of what has been searched */
+	private int  iState;
+
+	/** Position in the stream of the next byte to search */
+	private long iOffset;
+
+	/** Buffer to read the channels (allocated when needed) */
+	private ByteBuffer iBuffer;
+
+
+	/** Contructor
+	 *
+	 * @param aNeedle what to search (not empty)
+	 */
+	public StreamSearch(byte[] aNeedle){
+		if (aNeedle.length == 0){
+			throw new IllegalArgumentException("Empty needle");
+		}
+		iNeedle = aNeedle.clone();
+		iNext   = new int[iNeedle.length];
+		for (int i = 1, k = 0; i < iNeedle.length; ++i){
+			while (k > 0 && iNeedle[i] != iNeedle[k])
+				k = iNext[k-1];
+			if (iNeedle[i] == iNeedle[k])
+				++k;
+			iNext[i] = k;
+		}
+	}
+
+
+	/** Start a new stream */
+	public void reset(){
+		iState  = 0;
+		iOffset = 0;
+		if (iBuffer != null){
+			iBuffer.clear().flip();
+		}
+	}
+
+	/** @return the position in the stream of the next byte to search */
+	public long getOffset(){ return iOffset; }
+
+
+	/** Search the next chunk of the stream
+	 *  The buffer is read from its position up to the end of the first match (it's then positioned
+	 *  after it, call find again to continue) or up to its limit.
+	 *
+	 * @param chunk the next bytes of the stream
+	 * @return the position of the match in the stream or -1 if there isn't any in the chunk
+	 */
+	public long find(ByteBuffer chunk){
+		byte[] needle = iNeedle;
+		int[]  next   = iNext;
+		int    m      = needle.length;
+		int    state  = iState;
+		int    start  = chunk.position();
+		int    limit  = chunk.limit();
+		for (int i = start; i < limit; ++i){
+			byte b = chunk.get(i);
+			while (state > 0 && b != needle[state])
+				state = next[state-1];
+			if (b == needle[state] && ++state == m){
+				iState   = next[m-1]; // the next match can overlap this one
+				iOffset += i + 1 - start;
+				chunk.position(i + 1);
+				return iOffset - m;
+			}
+		}
+		iState   = state;
+		iOffset += limit - start;
+		chunk.position(limit);
+		return -1;
+	}
+
+
+	/** Give the next match in a channel
+	 *  The bytes read after the match are kept for the next call (use the same StreamSearch for a channel).
+	 *
+	 * @return its position from the start of the channel (or the last reset), -1 at the end of the channel
+	 */
+	public long indexOf(ReadableByteChannel channel) throws IOException {
+		if (iBuffer == null){
+			iBuffer = ByteBuffer.allocateDirect(iBufferSize);
+			iBuffer.flip();
+		}
+		while (true){
+			if (iBuffer.hasRemaining()){
+				long pos = find(iBuffer);
+				if (pos >= 0){
+					return pos;
+				}
+			}
+			iBuffer.clear();
+			int nbRead = channel.read(iBuffer);
+			iBuffer.flip();
+			if (nbRead < 0){
+				return -1;
+			}
+		}
+	}
+
+
+	/** Find all the matches (overlapping) of a channel
+	 *
+	 * @param consumer receives their positions
+	 * @return the number of matches
+	 */
+	public long findAll(ReadableByteChannel channel, LongConsumer consumer) throws IOException {
+		long nbMatches = 0;
+		for (long pos = indexOf(channel); pos >= 0; pos = indexOf(channel)){
+			consumer.accept(pos);
+			++nbMatches;
+		}
+		return nbMatches;
+	}
+
+
+	/** Find all the matches (overlapping) of a file, mapped region by region (cf iMapSize)
+	 *
+	 * @param consumer receives their positions in the file
+	 * @return the number of matches
+	 */
+	public long findAll(Path file, LongConsumer consumer) throws IOException {
+		reset();
+		long nbMatches = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			long size = channel.size();
+			for (long start = 0; start < size; start += iMapSize){
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(iMapSize, size - start));
+				for (long pos = find(region); pos >= 0; pos = find(region)){
+					consumer.accept(pos);
+					++nbMatches;
+				}
+			}
+		}
+		return nbMatches;
+	}
+
+
+	/** Search a needle in a file or in the standard input
+	 *  Syntax: java StreamSearch needle [file]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0){
+			// an article split in chunks that cut the markers
+			StreamSearch search = new StreamSearch("\r\n.\r\n".getBytes());
+			byte[] article = "=ybegin line=128\r\ndata\r\n..dot\r\n.\r\n=ybegin line=128\r\nmore\r\n.\r\n".getBytes();
+			for (int i = 0; i < article.length; i += 3){
+				ByteBuffer chunk = ByteBuffer.wrap(article, i, Math.min(3, article.length - i)).slice();
+				for (long pos = search.find(chunk); pos >= 0; pos = search.find(chunk))
+					System.out.println("End of article at "+pos);
+			}
+			System.out.println("Syntax: java StreamSearch needle [file]");
+			return;
+		}
+
+		StreamSearch search = new StreamSearch(args[0].getBytes());
+		long start = System.nanoTime();
+		long nbMatches;
+		if (args.length > 1){
+			nbMatches = search.findAll(Path.of(args[1]), pos -> System.out.println(pos));
+		} else {
+			nbMatches = search.findAll(java.nio.channels.Channels.newChannel(System.in), pos -> System.out.println(pos));
+		}
+		long nanos = Math.max(1, System.nanoTime() - start);
+		System.err.println(nbMatches+" matches in "+search.getOffset() / (1024 * 1024)+" MB in "+nanos / 1000000+" ms ("
+				+search.getOffset() * 1000 / nanos+" MB/s)");
+	}
+
+}
@@ -0,0 +1,491 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SuffixArrayIndex is built once on a haystack to answer many queries
+ * (ArrayPattern and FindArrayInArrayObj.getPosition scan the whole haystack at each query).
+ *
+ * - the elements of the haystack are numbered (ids from 1): the bytes and chars by their value,
+ *   the ints and longs by their rank in the sorted distinct values, the objects with hashCode / equals
+ * - suffix array: the positions of the suffixes in their sorted order, built by prefix doubling
+ *   (the suffixes are sorted by their first 1, 2, 4... elements with radix sorts): O(n log n)
+ * - LCP array (Kasai): length of the common prefix of 2 consecutive suffixes: O(n)
+ * - minimum positions of the blocks of iBlockSize suffixes with a sparse table over them,
+ *   so the first position of a needle doesn't depend on its number of occurrences
+ *
+ * The suffixes starting with a needle are consecutive: they are found by 2 binary searches
+ * of O(m log n) (the elements already known equal at both bounds aren't compared again).
+ * - count: number of occurrences, O(m log n)
+ * - first: position of the first occurrence, O(m log n + iBlockSize)
+ * - occurrences: all the positions in increasing order, O(m log n + k log k)
+ *
+ * Everything is in int[]s: about 4 ints per element of the haystack (text, suffixes, LCP, blocks),
+ * the build uses 3 more temporarily. getBuildMillis and getMemory report their cost.
+ * An index doesn't change once built so it can be used by several threads.
+ */
+public abstract class SuffixArrayIndex<A> {
+
+	/** Number of suffixes of a block of the first position query */
+	public static int iBlockSize = 32;
+
+
+	/** Ids of the haystack (from 1) */
+	protected final int[] iText;
+
+	/** Positions of the suffixes in their sorted order */
+	protected final int[] iSuffixes;
+
+	/** Length of the common prefix of iSuffixes[i-1] and iSuffixes[i] (0 for i = 0) */
+	protected final int[] iLcp;
+
+	/** iMinimums[j][b]: minimum position of the blocks b to b + 2^j - 1 */
+	protected final int[][] iMinimums;
+
+	/** Build time (numbering of the elements included, cf built) */
+	protected long iBuildNanos;
+
+
+	/** Contructor: build the index
+	 *
+	 * @param text ids of the haystack (from 1)
+	 */
+	protected SuffixArrayIndex(int[] text){
+		int nbIds = 0;
+		for (int id : text)
+			nbIds = Math.max(nbIds, id);
+		iText     = text;
+		iSuffixes = sort(text, nbIds);
+		iLcp      = new int[text.length];
+
+		// Kasai: the common prefix of a suffix is at least the previous one - 1
+		int n = text.length;
+		int[] ranks = new int[n];
+		for (int i = 0; i < n; ++i)
+			ranks[iSuffixes[i]] = i;
+		for (int i = 0, h = 0; i < n; ++i){
+			if (ranks[i] == 0){
+				h = 0;
+				continue;
+			}
+			int j = iSuffixes[ranks[i] - 1];
+			while (i + h < n && j + h < n && text[i+h] == text[j+h])
+				++h;
+			iLcp[ranks[i]] = h;
+			if (h > 0)
+				--h;
+		}
+
+		// minimum position of the blocks and sparse table on them
+		int nbBlocks = (n + iBlockSize - 1) / iBlockSize;
+		int nbLevels = 1;
+		while ((1 << nbLevels) <= nbBlocks)
+			++nbLevels;
+		iMinimums    = new int[nbLevels][];
+		iMinimums[0] = new int[nbBlocks];
+		Arrays.fill(iMinimums[0], Integer.MAX_VALUE);
+		for (int i = 0; i < n; ++i)
+			iMinimums[0][i / iBlockSize] = Math.min(iMinimums[0][i / iBlockSize], iSuffixes[i]);
+		for (int j = 1; j < nbLevels; ++j){
+			int half = 1 << (j - 1);
+			iMinimums[j] = new int[nbBlocks - (1 << j) + 1];
+			for (int b = 0; b < iMinimums[j].length; ++b)
+				iMinimums[j][b] = Math.min(iMinimums[j-1][b], iMinimums[j-1][b + half]);
+		}
+	}
+
+
+	/** Sort the suffixes by prefix doubling
+	 *
+	 * @param text  ids from 1 to nbIds
+	 * @return the positions of the suffixes in their sorted order
+	 */
+	private static int[] sort(int[] text, int nbIds){
+		int n = text.length;
+		int[] suffixes = new int[n];
+		if (n == 0){
+			return suffixes;
+		}
+		int[] rank   = text.clone();
+		int[] tmp    = new int[n];
+		int[] counts = new int[Math.max(nbIds, n) + 1];
+
+		// by the first element
+		for (int i = 0; i < n; ++i)
+			++counts[rank[i]];
+		for (int r = 1; r < counts.length; ++r)
+			counts[r] += counts[r-1];
+		for (int i = n - 1; i >= 0; --i)
+			suffixes[--counts[rank[i]]] = i;
+		int nbRanks = nbIds;
+
+		for (int k = 1; ; k <<= 1){
+			// by the rank of their elements k to 2k - 1: the shortest suffixes first (nothing there)
+			int p = 0;
+			for (int i = n - k; i < n; ++i)
+				tmp[p++] = i;
+			for (int i = 0; i < n; ++i){
+				if (suffixes[i] >= k)
+					tmp[p++] = suffixes[i] - k;
+			}
+			// then (stable) by the rank of their first k elements
+			Arrays.fill(counts, 0, nbRanks + 1, 0);
+			for (int i = 0; i < n; ++i)
+				++counts[rank[i]];
+			for (int r = 1; r <= nbRanks; ++r)
+				counts[r] += counts[r-1];
+			for (int i = n - 1; i >= 0; --i)
+				suffixes[--counts[rank[tmp[i]]]] = tmp[i];
+
+			// rank of their first 2k elements
+			tmp[suffixes[0]] = nbRanks = 1;
+			for (int i = 1; i < n; ++i){
+				int a = suffixes[i-1], b = suffixes[i];
+				int secondA = (a + k < n) ? rank[a+k] : 0;
+				int secondB = (b + k < n) ? rank[b+k] : 0;
+				if (rank[a] != rank[b] || secondA != secondB)
+					++nbRanks;
+				tmp[b] = nbRanks;
+			}
+			int[] swap = rank;
+			rank = tmp;
+			tmp  = swap;
+			if (nbRanks == n){
+				return suffixes;
+			}
+		}
+	}
+
+
+	/** @return the needle as ids or null if one of its elements isn't in the haystack */
+	protected abstract int[] toIds(A needle);
+
+
+	/** @return the number of occurrences of the needle (overlapping) */
+	public int count(A needle){
+		int[] ids = toIds(needle);
+		if (ids == null){
+			return 0;
+		}
+		return upperBound(ids) - lowerBound(ids);
+	}
+
+	/** @return the position of the first occurrence of the needle or -1 */
+	public int first(A needle){
+		int[] ids = toIds(needle);
+		if (ids == null){
+			return -1;
+		}
+		int lo = lowerBound(ids), hi = upperBound(ids);
+		return (lo < hi) ? minimum(lo, hi) : -1;
+	}
+
+	/** @return the positions of all the occurrences of the needle in increasing order */
+	public int[] occurrences(A needle){
+		int[] ids = toIds(needle);
+		if (ids == null){
+			return new int[0];
+		}
+		int[] positions = Arrays.copyOfRange(iSuffixes, lowerBound(ids), upperBound(ids));
+		Arrays.sort(positions);
+		return positions;
+	}
+
+
+	/** @return the first suffix that isn't before the needle (it starts with it or is after it) */
+	private int lowerBound(int[] needle){
+		int lo = 0, hi = iSuffixes.length;
+		int lcpLo = 0, lcpHi = 0; // common prefix of the needle with the suffixes lo - 1 and hi
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int k   = commonPrefix(iSuffixes[mid], needle, Math.min(lcpLo, lcpHi));
+			int s   = iSuffixes[mid];
+			if (k < needle.length && (s + k == iText.length || iText[s+k] < needle[k])){
+				lo    = mid + 1;
+				lcpLo = k;
+			} else {
+				hi    = mid;
+				lcpHi = k;
+			}
+		}
+		return lo;
+	}
+
+	/** @return the first suffix after the needle (that doesn't start with it) */
+	private int upperBound(int[] needle){
+		int lo = 0, hi = iSuffixes.length;
+		int lcpLo = 0, lcpHi = 0;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int k   = commonPrefix(iSuffixes[mid], needle, Math.min(lcpLo, lcpHi));
+			int s   = iSuffixes[mid];
+			if (k == needle.length || s + k == iText.length || iText[s+k] < needle[k]){
+				lo    = mid + 1;
+				lcpLo = k;
+			} else {
+				hi    = mid;
+				lcpHi = k;
+			}
+		}
+		return lo;
+	}
+
+	/** @return the length of the common prefix of a suffix and the needle, knowing that it is at least k */
+	private int commonPrefix(int suffix, int[] needle, int k){
+		while (k < needle.length && suffix + k < iText.length && iText[suffix+k] == needle[k])
+			++k;
+		return k;
+	}
+
+	/** @return the minimum of iSuffixes[lo...hi-1] */
+	private int minimum(int lo, int hi){
+		int blockLo = lo / iBlockSize, blockHi = (hi - 1) / iBlockSize;
+		int min = Integer.MAX_VALUE;
+		if (blockLo == blockHi){
+			for (int i = lo; i < hi; ++i)
+				min = Math.min(min, iSuffixes[i]);
+			return min;
+		}
+		for (int i = lo; i < (blockLo + 1) * iBlockSize; ++i)
+			min = Math.min(min, iSuffixes[i]);
+		for (int i = blockHi * iBlockSize; i < hi; ++i)
+			min = Math.min(min, iSuffixes[i]);
+		if (blockLo + 1 < blockHi){
+			int from = blockLo + 1, nb = blockHi - from;
+			int level = 31 - Integer.numberOfLeadingZeros(nb);
+			min = Math.min(min, Math.min(iMinimums[level][from], iMinimums[level][blockHi - (1 << level)]));
+		}
+		return min;
+	}
+
+
+	/** @return the length of the longest needle that occurs at least twice (from the LCP array) */
+	public int getLongestRepeat(){
+		int max = 0;
+		for (int lcp : iLcp)
+			max = Math.max(max, lcp);
+		return max;
+	}
+
+	/** @return the length of the haystack */
+	public int length(){ return iText.length; }
+
+	/** @return the build time in milliseconds */
+	public long getBuildMillis(){ return iBuildNanos / 1000000; }
+
+	/** @return the memory used by the index in bytes */
+	public long getMemory(){
+		long size = 4L * (iText.length + iSuffixes.length + iLcp.length);
+		for (int[] level : iMinimums)
+			size += 4L * level.length;
+		return size;
+	}
+
+	@Override
+	public String toString(){
+		return getClass().getSimpleName()+" of "+iText.length+" elements built in "+getBuildMillis()+" ms, "
+				+getMemory() / 1024+" KB";
+	}
+
+
+	public static OfBytes         of(byte[] haystack){ long start = System.nanoTime(); return built(new OfBytes(haystack), start); }
+	public static OfChars         of(char[] haystack){ long start = System.nanoTime(); return built(new OfChars(haystack), start); }
+	public static OfInts          of(int[] haystack) { long start = System.nanoTime(); return built(new OfInts(haystack), start); }
+	public static OfLongs         of(long[] haystack){ long start = System.nanoTime(); return built(new OfLongs(haystack), start); }
+	public static <T> OfObjects<T> of(T[] haystack)   { long start = System.nanoTime(); return built(new OfObjects<>(haystack), start); }
+
+	/** Set the build time of an index */
+	private static <I extends SuffixArrayIndex<?>> I built(I index, long startNanos){
+		index.iBuildNanos = System.nanoTime() - startNanos;
+		return index;
+	}
+
+
+	/** Index of bytes (id: value + 1) */
+	public static final class OfBytes extends SuffixArrayIndex<byte[]> {
+		private OfBytes(byte[] haystack){
+			super(getIds(haystack));
+		}
+
+		private static int[] getIds(byte[] values){
+			int[] ids = new int[values.length];
+			for (int i = 0; i < values.length; ++i)
+				ids[i] = (values[i] & 0xFF) + 1;
+			return ids;
+		}
+
+		@Override
+		protected int[] toIds(byte[] needle){
+			return getIds(needle);
+		}
+	}
+
+
+	/** Index of chars (id: value + 1) */
+	public static final class OfChars extends SuffixArrayIndex<char[]> {
+		private OfChars(char[] haystack){
+			super(getIds(haystack));
+		}
+
+		private static int[] getIds(char[] values){
+			int[] ids = new int[values.length];
+			for (int i = 0; i < values.length; ++i)
+				ids[i] = values[i] + 1;
+			return ids;
+		}
+
+		@Override
+		protected int[] toIds(char[] needle){
+			return getIds(needle);
+		}
+	}
+
+
+	/** Index of ints (id: rank in the distinct values + 1) */
+	public static final class OfInts extends SuffixArrayIndex<int[]> {
+		private final int[] iValues;
+
+		private OfInts(int[] haystack){
+			this(haystack, Arrays.stream(haystack).distinct().sorted().toArray());
+		}
+
+		private OfInts(int[] haystack, int[] values){
+			super(toIds(haystack, values));
+			iValues = values;
+		}
+
+		private static int[] toIds(int[] needle, int[] values){
+			int[] ids = new int[needle.length];
+			for (int i = 0; i < needle.length; ++i){
+				ids[i] = Arrays.binarySearch(values, needle[i]) + 1;
+				if (ids[i] <= 0)
+					return null;
+			}
+			return ids;
+		}
+
+		@Override
+		protected int[] toIds(int[] needle){
+			return toIds(needle, iValues);
+		}
+
+		@Override
+		public long getMemory(){ return super.getMemory() + 4L * iValues.length; }
+	}
+
+
+	/** Index of longs (id: rank in the distinct values + 1) */
+	public static final class OfLongs extends SuffixArrayIndex<long[]> {
+		private final long[] iValues;
+
+		private OfLongs(long[] haystack){
+			this(haystack, Arrays.stream(haystack).distinct().sorted().toArray());
+		}
+
+		private OfLongs(long[] haystack, long[] values){
+			super(toIds(haystack, values));
+			iValues = values;
+		}
+
+		private static int[] toIds(long[] needle, long[] values){
+			int[] ids = new int[needle.length];
+			for (int i = 0; i < needle.length; ++i){
+				ids[i] = Arrays.binarySearch(values, needle[i]) + 1;
+				if (ids[i] <= 0)
+					return null;
+			}
+			return ids;
+		}
+
+		@Override
+		protected int[] toIds(long[] needle){
+			return toIds(needle, iValues);
+		}
+
+		@Override
+		public long getMemory(){ return super.getMemory() + 8L * iValues.length; }
+	}
+
+
+	/** Index of objects (id: in the order of their first occurrence, compared with equals) */
+	public static final class OfObjects<T> extends SuffixArrayIndex<T[]> {
+
+		/** Key of null in the ids */
+		private static final Object nullKey = new Object();
+
+		private final Map<Object, Integer> iIds;
+
+		private OfObjects(T[] haystack){
+			this(haystack, new HashMap<>());
+		}
+
+		private OfObjects(T[] haystack, Map<Object, Integer> ids){
+			super(toIds(haystack, ids));
+			iIds = ids;
+		}
+
+		private static int[] toIds(Object[] haystack, Map<Object, Integer> ids){
+			int[] text = new int[haystack.length];
+			for (int i = 0; i < haystack.length; ++i)
+				text[i] = ids.computeIfAbsent(haystack[i] == null ? nullKey : haystack[i], o -> ids.size() + 1);
+			return text;
+		}
+
+		@Override
+		protected int[] toIds(T[] needle){
+			int[] ids = new int[needle.length];
+			for (int i = 0; i < needle.length; ++i){
+				Integer id = iIds.get(needle[i] == null ? nullKey : needle[i]);
+				if (id == null)
+					return null;
+				ids[i] = id;
+			}
+			return ids;
+		}
+	}
+
+
+	/** Build an index on a random haystack and compare its queries with ArrayPattern */
+	public static void main(String[] args){
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+		java.util.Random random = new java.util.Random(42);
+		byte[] haystack = new byte[size];
+		for (int i = 0; i < size; ++i)
+			haystack[i] = (byte) ('a' + random.nextInt(4));
+
+		OfBytes index = of(haystack);
+		System.out.println(index+", longest repeat: "+index.getLongestRepeat());
+
+		byte[][] needles = new byte[1000][];
+		for (int n = 0; n < needles.length; ++n){
+			needles[n] = new byte[4 + random.nextInt(12)];
+			for (int i = 0; i < needles[n].length; ++i)
+				needles[n][i] = (byte) ('a' + random.nextInt(4));
+		}
+
+		long start = System.nanoTime();
+		long total = 0;
+		int[] firsts = new int[needles.length];
+		for (int n = 0; n < needles.length; ++n){
+			total += index.count(needles[n]);
+			firsts[n] = index.first(needles[n]);
+		}
+		System.out.println(needles.length+" needles with the index: "+total+" occurrences in "+(System.nanoTime() - start) / 1000000+" ms");
+
+		start = System.nanoTime();
+		long total2 = 0;
+		boolean isOk = true;
+		for (int n = 0; n < needles.length; ++n){
+			ArrayPattern.OfBytes pattern = ArrayPattern.compile(needles[n]);
+			total2 += pattern.findAll(haystack).count();
+			isOk &= pattern.indexOf(haystack) == firsts[n];
+		}
+		System.out.println(needles.length+" needles with ArrayPattern: "+total2+" occurrences in "+(System.nanoTime() - start) / 1000000+" ms"
+				+", same counts and first positions: "+(isOk && total == total2));
+
+		OfObjects<String> words = of("the cat and the dog and the bird".split(" "));
+		System.out.println(words+": \"and the\" "+words.count("and the".split(" "))+" times at "
+				+Arrays.toString(words.occurrences("and the".split(" ")))+", first \"the\" at "+words.first(new String[]{"the"}));
+	}
+
+}
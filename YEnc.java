@@ -0,0 +1,319 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * YEnc implements the yEnc encoding of binaries posted on Usenet.
+ *
+ * - each byte is shifted by 42
+ * - the critical bytes (NUL, LF, CR, =) are escaped: '=' followed by the byte shifted by 64
+ * - TAB and SPACE are also escaped at the beginning and at the end of a line
+ * - the lines are dot-stuffed for NNTP: a line starting with a dot gets an extra one
+ *
+ * The encoding writes directly in the backing array of a ByteBuffer
+ * so the caller can reuse (pool) its buffers.
+ *
+ * The decoding is done by YEnc.Decoder, an OutputStream receiving the lines of an article
+ * (cf NntpSocket.doArticleCmd) that gives each decoded part to a PartListener.
+ *
+ * @author Matthieu Bruel
+ * @version 1.0
+ *
+ * All rights reserved. Relased under terms of the
+ * Creative Commons' Attribution-NonCommercial-ShareAlike license.
+ */
+public class YEnc {
+
+	/** Default length of an encoded line */
+	public static final int  defaultLineLength = 128;
+
+	/** escape byte */
+	protected static final byte escape = (byte) '=';
+
+	/** carriage return byte */
+	protected static final byte CR     = (byte) '\r';
+
+	/** Line Feed byte */
+	protected static final byte LF     = (byte) '\n';
+
+	/** dot (needs to be doubled at the beginning of a line in NNTP) */
+	protected static final byte dot    = (byte) '.';
+
+
+	/** Maximum size of the encoded data
+	 *  (every byte escaped, plus the dot-stuffing and the CRLF of each line)
+	 *
+	 * @param len        number of bytes to encode
+	 * @param lineLength length of an encoded line
+	 * @return size of the buffer needed by encode
+	 */
+	public static int maxEncodedSize(int len, int lineLength){
+		int nbLines = (2 * len) / lineLength + 1;
+		return 2 * len + 3 * nbLines;
+	}
+
+
+	/** Encode some data in yEnc (dot-stuffed for NNTP)
+	 *
+	 * @param src        the data to encode
+	 * @param off        offset of the first byte to encode
+	 * @param len        number of bytes to encode
+	 * @param dst        where to write the encoded lines (must have a backing array
+	 *                   and maxEncodedSize(len, lineLength) remaining bytes)
+	 * @param lineLength length of an encoded line (128 usually)
+	 * @return the number of bytes written in dst (its position is moved accordingly)
+	 */
+	public static int encode(byte[] src, int off, int len, ByteBuffer dst, int lineLength){
+		byte[] out   = dst.array();
+		int    start = dst.arrayOffset() + dst.position();
+		int    pos   = start;
+		int    col   = 0;
+		int    end   = off + len;
+
+		for (int i = off; i < end; ++i){
+			int c = (src[i] + 42) & 0xff;
+
+			boolean isEscaped;
+			switch (c){
+				case 0:
+				case '\n':
+				case '\r':
+				case '=':
+					isEscaped = true;
+					break;
+				case '\t':
+				case ' ':
+					isEscaped = (col == 0 || col >= lineLength - 1 || i == end - 1);
+					break;
+				case '.':
+					// NNTP dot-stuffing (it doesn't count in the line length)
+					if (col == 0){
+						out[pos++] = dot;
+					}
+					isEscaped = false;
+					break;
+				default:
+					isEscaped = false;
+			}
+
+			if (isEscaped){
+				out[pos++] = escape;
+				c = (c + 64) & 0xff;
+				++col;
+			}
+			out[pos++] = (byte) c;
+			++col;
+
+			if (col >= lineLength){
+				out[pos++] = CR;
+				out[pos++] = LF;
+				col = 0;
+			}
+		}
+
+		if (col > 0){
+			out[pos++] = CR;
+			out[pos++] = LF;
+		}
+
+		dst.position(dst.position() + (pos - start));
+		return pos - start;
+	}
+
+
+
+	/** Decode a yEnc line
+	 *
+	 * @param src    the encoded line
+	 * @param off    offset of the line
+	 * @param len    length of the line (without the CRLF)
+	 * @param dst    where to write the decoded bytes (at least len bytes available)
+	 * @param dstOff where to start writing
+	 * @return the number of bytes decoded
+	 */
+	public static int decodeLine(byte[] src, int off, int len, byte[] dst, int dstOff){
+		int pos = dstOff;
+		int end = off + len;
+		for (int i = off; i < end; ++i){
+			int c = src[i];
+			if (c == escape && i + 1 < end){
+				c = src[++i] - 64;
+			}
+			dst[pos++] = (byte) (c - 42);
+		}
+		return pos - dstOff;
+	}
+
+
+	/** Get the value of a parameter of a yEnc header line (=ybegin, =ypart, =yend)
+	 *
+	 * @param line the header line
+	 * @param key  name of the parameter
+	 * @return the value or null if the parameter isn't there
+	 */
+	public static String getParam(String line, String key){
+		int start = line.indexOf(" "+key+"=");
+		if (start == -1){
+			return null;
+		}
+		start += key.length() + 2;
+
+		// the name is always the last parameter and may contain spaces
+		if (key.equals("name")){
+			return line.substring(start).trim();
+		}
+
+		int end = line.indexOf(' ', start);
+		return (end == -1) ? line.substring(start).trim() : line.substring(start, end);
+	}
+
+
+
+	/** What to do with a decoded part */
+	public interface PartListener {
+		/** Called when a part has been fully decoded
+		 *
+		 * @param name     name of the file
+		 * @param fileSize size of the file
+		 * @param offset   position of the part in the file
+		 * @param data     decoded bytes
+		 * @param len      number of decoded bytes
+		 * @param isCrcOk  does the CRC32 of the part match the one of =yend (true if not given)
+		 */
+		void onPart(String name, long fileSize, long offset, byte[] data, int len, boolean isCrcOk);
+	}
+
+
+	/**
+	 * Decoder receives the lines of an article (dot-stuffing already removed)
+	 * and decodes the yEnc part it contains.
+	 * The lines can be written in any number of calls.
+	 */
+	public static class Decoder extends OutputStream {
+
+		/** Who gets the decoded part */
+		private final PartListener listener;
+
+		/** Current line when it is written in several calls */
+		private final ByteArrayOutputStream pendingLine = new ByteArrayOutputStream(256);
+
+		private String  name;
+		private long    fileSize;
+		private long    offset;
+		private byte[]  data;
+		private int     dataLen;
+		private boolean isInBody;
+
+		/** Contructor
+		 *
+		 * @param aListener who gets the decoded part
+		 */
+		public Decoder(PartListener aListener){
+			listener = aListener;
+			data     = new byte[0];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{ (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			int end   = off + len;
+			int start = off;
+			for (int i = off; i < end; ++i){
+				if (buf[i] != LF){
+					continue;
+				}
+				if (pendingLine.size() == 0){
+					processLine(buf, start, i + 1 - start);
+				} else {
+					pendingLine.write(buf, start, i + 1 - start);
+					processLine(pendingLine.toByteArray(), 0, pendingLine.size());
+					pendingLine.reset();
+				}
+				start = i + 1;
+			}
+			if (start < end){
+				pendingLine.write(buf, start, end - start);
+			}
+		}
+
+		/** Process a full line (ending with LF)
+		 *
+		 * @param line the buffer containing the line
+		 * @param off  offset of the line
+		 * @param len  length of the line with its end of line
+		 */
+		protected void processLine(byte[] line, int off, int len) throws IOException {
+			// remove the end of line
+			if (len > 0 && line[off + len - 1] == LF){ --len; }
+			if (len > 0 && line[off + len - 1] == CR){ --len; }
+
+			if (len >= 2 && line[off] == escape && line[off + 1] == (byte) 'y'){
+				String header = new String(line, off, len, StandardCharsets.ISO_8859_1);
+				if (header.startsWith("=ybegin ")){
+					name     = getParam(header, "name");
+					fileSize = parseLong(header, "size", 0);
+					offset   = 0;
+					dataLen  = 0;
+					isInBody = true;
+				} else if (header.startsWith("=ypart ")){
+					long begin = parseLong(header, "begin", 1);
+					long end   = parseLong(header, "end", begin - 1);
+					offset = begin - 1;
+					ensureCapacity((int) (end - offset));
+				} else if (header.startsWith("=yend")){
+					isInBody = false;
+					String pcrc = getParam(header, "pcrc32");
+					if (pcrc == null && offset == 0){
+						pcrc = getParam(header, "crc32");
+					}
+					boolean isCrcOk = true;
+					if (pcrc != null){
+						CRC32 crc = new CRC32();
+						crc.update(data, 0, dataLen);
+						try {
+							isCrcOk = (crc.getValue() == Long.parseLong(pcrc, 16));
+						} catch (NumberFormatException e){
+							throw new IOException("Invalid yEnc crc: "+header);
+						}
+					}
+					listener.onPart(name, fileSize, offset, data, dataLen, isCrcOk);
+				}
+				return;
+			}
+
+			if (isInBody){
+				ensureCapacity(dataLen + len);
+				dataLen += decodeLine(line, off, len, data, dataLen);
+			}
+		}
+
+		/** Make sure the decoded buffer can hold size bytes */
+		private void ensureCapacity(int size){
+			if (data.length < size){
+				data = Arrays.copyOf(data, Math.max(size, 2 * data.length));
+			}
+		}
+
+		/** Parse a numerical parameter of a yEnc header line */
+		private static long parseLong(String line, String key, long defaultValue) throws IOException {
+			String value = getParam(line, key);
+			if (value == null){
+				return defaultValue;
+			}
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e){
+				throw new IOException("Invalid yEnc header: "+line);
+			}
+		}
+	}
+
+}
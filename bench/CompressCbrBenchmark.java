@@ -0,0 +1,269 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the decode / encode paths of CompressCbr on generated pages
+ * (white paper with drawings and text, in colour or in gray, of several sizes).
+ *
+ * - decode:        ImageIO.read against CompressCbr.decodeImage
+ * - encode:        JPEG at several qualities, looking up a writer for each image or reusing
+ *                  the one of the thread (CompressCbr.encodeJpg), in memory or in a file
+ * - compressImage: the whole decode + encode of a page
+ * - doCompression: pages per second of a volume on 1 to 8 threads
+ *
+ * The repository has no build file, so the benchmarks are compiled by hand with the JMH jars
+ * (jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3) from the root of the repository:
+ *
+ *   javac -cp "jmh/*" -d bench/classes *.java bench/*.java
+ *   java -cp "jmh/*:bench/classes" org.openjdk.jmh.Main CompressCbrBenchmark
+ *
+ * (run one benchmark with e.g. org.openjdk.jmh.Main 'CompressCbrBenchmark.encode.*' -p size=1600x2400)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressCbrBenchmark {
+
+	/** A generated page in its original formats */
+	@State(Scope.Benchmark)
+	public static class PageState {
+		@Param({"800x1200", "1600x2400", "3200x4800"})
+		public String size;
+
+		@Param({"rgb", "gray"})
+		public String colour;
+
+		BufferedImage image;
+		byte[]        jpg;
+		byte[]        png;
+		CompressCbr   compressor;
+		Path          outputFile;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			String[] dims = size.split("x");
+			image = generatePage(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), colour.equals("gray"), 42);
+			jpg   = encode(image, "jpg");
+			png   = encode(image, "png");
+			compressor = new CompressCbr("bench");
+			CompressCbr.iIsVerbose = false;
+			outputFile = Files.createTempFile("bench", ".jpg");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.deleteIfExists(outputFile);
+		}
+	}
+
+	/** Quality of the JPEG encoding */
+	@State(Scope.Benchmark)
+	public static class QualityState {
+		@Param({"0.3", "0.5", "0.8"})
+		public float quality;
+	}
+
+	/** A volume of generated pages in a folder */
+	@State(Scope.Benchmark)
+	public static class VolumeState {
+		public static final int nbPages = 24;
+
+		@Param({"1", "2", "4", "8"})
+		public int nbThreads;
+
+		Path folder;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			// relative: the destination is compress_'folder' in the current folder
+			folder = Files.createTempDirectory(Paths.get(""), "benchVolume");
+			for (int i = 0; i < nbPages; ++i){
+				BufferedImage page = generatePage(1600, 2400, i % 2 == 0, i);
+				Files.write(folder.resolve(String.format("page%03d.jpg", i)), encode(page, "jpg"));
+			}
+			CompressCbr.iIsVerbose = false;
+		}
+
+		@Setup(Level.Invocation)
+		public void cleanDestination() throws IOException {
+			delete(Paths.get("compress_"+folder));
+			CompressCbr.iNbThreads = nbThreads;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			delete(Paths.get("compress_"+folder));
+			delete(folder);
+		}
+	}
+
+
+	@Benchmark
+	public BufferedImage decodeImageIORead(PageState state) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(state.jpg));
+	}
+
+	@Benchmark
+	public BufferedImage decodeCompressCbr(PageState state) throws IOException {
+		return state.compressor.decodeImage(state.jpg);
+	}
+
+	@Benchmark
+	public BufferedImage decodePng(PageState state) throws IOException {
+		return state.compressor.decodeImage(state.png);
+	}
+
+
+	/** Encoding as CompressCbr did before keeping a writer per thread */
+	@Benchmark
+	public byte[] encodeWriterLookup(PageState state, QualityState quality) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+		ImageWriter writer = writers.next();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)){
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality.quality);
+			writer.write(null, new IIOImage(state.image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encodeWriterReused(PageState state, QualityState quality) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		state.compressor.encodeJpg(state.image, quality.quality, os);
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public void encodeToFile(PageState state, QualityState quality) throws IOException {
+		try (OutputStream os = Files.newOutputStream(state.outputFile)){
+			state.compressor.encodeJpg(state.image, quality.quality, os);
+		}
+	}
+
+
+	/** Decode + encode of a page (as compressImage, at iJpgCompressionFactor) */
+	@Benchmark
+	public void compressImage(PageState state, Blackhole blackhole) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		state.compressor.compressImage(new ByteArrayInputStream(state.jpg), os);
+		blackhole.consume(os.size());
+	}
+
+
+	/** Pages per second of a whole volume */
+	@Benchmark
+	@OperationsPerInvocation(VolumeState.nbPages)
+	public int doCompression(VolumeState state){
+		CompressCbr cbr = new CompressCbr(state.folder.toString());
+		cbr.checkFolder();
+		return cbr.doCompression();
+	}
+
+
+	/** Generate a page: white paper, panels, gray or coloured shapes and lines of text
+	 *
+	 * @param width  width of the page
+	 * @param height height of the page
+	 * @param isGray only shades of gray
+	 * @param seed   seed of the drawings
+	 * @return the page
+	 */
+	static BufferedImage generatePage(int width, int height, boolean isGray, long seed){
+		BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = page.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+
+			Random random = new Random(seed);
+			int margin = width / 20;
+			int panelHeight = (height - 2 * margin) / 3;
+			for (int panel = 0; panel < 3; ++panel){
+				int y = margin + panel * panelHeight;
+				for (int i = 0; i < 40; ++i){
+					int v = random.nextInt(256);
+					g.setColor(isGray ? new Color(v, v, v) : new Color(v, random.nextInt(256), random.nextInt(256)));
+					g.fillOval(margin + random.nextInt(width - 2 * margin), y + random.nextInt(panelHeight),
+							random.nextInt(width / 4) + 1, random.nextInt(panelHeight / 2) + 1);
+				}
+				g.setColor(Color.BLACK);
+				g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(10, width / 50)));
+				for (int line = 0; line < 3; ++line){
+					g.drawString("Lorem ipsum dolor sit amet "+random.nextInt(1000),
+							2 * margin, y + (line + 1) * width / 40);
+				}
+				g.drawRect(margin, y, width - 2 * margin, panelHeight - margin / 2);
+			}
+		} finally {
+			g.dispose();
+		}
+		return page;
+	}
+
+	/** @return the image encoded in a format with its default settings */
+	static byte[] encode(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(image, format, os);
+		return os.toByteArray();
+	}
+
+	/** Delete a file or a folder with its content */
+	static void delete(Path path) throws IOException {
+		if (!Files.exists(path)){
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)){
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator){
+				Files.delete(p);
+			}
+		}
+	}
+
+}